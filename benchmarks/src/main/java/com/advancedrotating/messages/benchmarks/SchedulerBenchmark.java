@@ -0,0 +1,90 @@
+package com.advancedrotating.messages.benchmarks;
+
+import com.advancedrotating.messages.models.MessageGroup;
+import com.advancedrotating.messages.rotation.RotationManager;
+import com.advancedrotating.messages.scheduler.DeadlineQueue;
+import com.advancedrotating.messages.scheduler.OverflowQueue;
+import com.advancedrotating.messages.storage.InMemoryRotationStorage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// One scheduler minute: pop every due group, queue a message for each the overflow queue accepts, push its next
+// deadline and send the head slot. Mirrors MessageScheduler.queueGroupMessages without the Bukkit broadcast.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SchedulerBenchmark {
+
+    private static final long MINUTE = 60 * 1000;
+    private static final int MESSAGES_PER_GROUP = 20;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int groupCount;
+
+    private DeadlineQueue deadlines;
+    private OverflowQueue overflowQueue;
+    private RotationManager rotationManager;
+    private Map<String, MessageGroup> groups;
+    private long currentTime;
+
+    @Setup
+    public void setup() {
+        deadlines = new DeadlineQueue();
+        overflowQueue = new OverflowQueue();
+        rotationManager = new RotationManager(new InMemoryRotationStorage());
+        groups = new HashMap<>();
+        currentTime = 0;
+
+        for (int i = 0; i < groupCount; i++) {
+            // Frequencies from 1 to 60 minutes, so each minute sees a realistic mix of due groups
+            MessageGroup group = SelectionBenchmark.Fixtures.group("group" + i, MESSAGES_PER_GROUP, 1 + i % 60);
+            groups.put(group.getId(), group);
+            rotationManager.initializeGroup(group);
+            deadlines.schedule(group.getId(), 0L, currentTime);
+        }
+    }
+
+    @Benchmark
+    public int scheduleMinute() {
+        currentTime += MINUTE;
+        int sent = 0;
+
+        DeadlineQueue.Deadline head = deadlines.peek();
+        while (head != null && head.getDueTime() <= currentTime) {
+            deadlines.poll();
+
+            MessageGroup group = groups.get(head.getGroupId());
+            if (overflowQueue.accepts(group.getId())) {
+                int messageId = rotationManager.pickMessage(group.getId());
+                if (messageId >= 0) {
+                    rotationManager.markSent(group.getId(), messageId);
+                    overflowQueue.add(group.getId(), messageId, currentTime);
+                }
+            }
+            deadlines.schedule(group.getId(), currentTime, head.getDueTime() + group.getFrequency() * MINUTE);
+
+            head = deadlines.peek();
+        }
+
+        sent += overflowQueue.pollDue(currentTime).size();
+        overflowQueue.takeChanged();
+        return sent;
+    }
+}
@@ -0,0 +1,99 @@
+package com.advancedrotating.messages.benchmarks;
+
+import com.advancedrotating.messages.models.MessageGroup;
+import com.advancedrotating.messages.rotation.RotationManager;
+import com.advancedrotating.messages.rotation.RotationPool;
+import com.advancedrotating.messages.storage.InMemoryRotationStorage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Random selection from a group's unsent messages
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SelectionBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int groupSize;
+
+    private RotationPool fullPool;
+    private RotationPool lastMessagePool;
+    private RotationPool weightedPool;
+    private RotationManager rotationManager;
+
+    @Setup
+    public void setup() {
+        fullPool = new RotationPool(groupSize);
+        lastMessagePool = new RotationPool(groupSize);
+        weightedPool = new RotationPool(groupSize);
+        for (int messageId = 0; messageId < groupSize; messageId++) {
+            fullPool.add(messageId);
+            lastMessagePool.add(messageId);
+            weightedPool.add(messageId);
+            weightedPool.setWeight(messageId, 1 + messageId % 10);
+        }
+        fullPool.reset();
+        lastMessagePool.reset();
+        weightedPool.reset();
+        // Walk the cycle until only one message is left
+        while (lastMessagePool.getAvailableCount() > 1) {
+            lastMessagePool.markSent(lastMessagePool.pickAvailable());
+        }
+
+        rotationManager = new RotationManager(new InMemoryRotationStorage());
+        rotationManager.initializeGroup(Fixtures.group("bench", groupSize, 1));
+    }
+
+    @Benchmark
+    public int pickFromFullPool() {
+        return fullPool.pickAvailable();
+    }
+
+    @Benchmark
+    public int pickLastRemaining() {
+        return lastMessagePool.pickAvailable();
+    }
+
+    @Benchmark
+    public int pickWeighted() {
+        return weightedPool.pickAvailable();
+    }
+
+    // One full send: pick, mark sent, and start a new cycle whenever the pool runs out
+    @Benchmark
+    public int pickAndMarkSent() {
+        int messageId = rotationManager.pickMessage("bench");
+        rotationManager.markSent("bench", messageId);
+        return messageId;
+    }
+
+    static final class Fixtures {
+        private Fixtures() {
+        }
+
+        static MessageGroup group(String groupId, int messageCount, int frequency) {
+            List<String> messages = new ArrayList<>(messageCount);
+            for (int i = 0; i < messageCount; i++) {
+                messages.add("&7Message " + i + " for {player} in group " + groupId);
+            }
+            return new MessageGroup(groupId, groupId, frequency, "&a[" + groupId + "]&r ", "", messages);
+        }
+    }
+}
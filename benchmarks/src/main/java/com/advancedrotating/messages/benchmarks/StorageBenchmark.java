@@ -0,0 +1,165 @@
+package com.advancedrotating.messages.benchmarks;
+
+import com.advancedrotating.messages.database.DatabaseManager;
+import com.advancedrotating.messages.rotation.RotationCycle;
+import com.advancedrotating.messages.rotation.RotationPool;
+import com.advancedrotating.messages.storage.FlatFileRotationStorage;
+import com.advancedrotating.messages.storage.InMemoryRotationStorage;
+import com.advancedrotating.messages.storage.JournalRotationStorage;
+import com.advancedrotating.messages.storage.QueuedMessage;
+import com.advancedrotating.messages.storage.RotationStorage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+// Every RotationStorage operation, against each backend in a fresh temporary directory
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StorageBenchmark {
+
+    private static final int GROUPS = 10;
+    private static final int MESSAGES_PER_GROUP = 100;
+    private static final int QUEUE_DEPTH = 10;
+
+    @Param({"sqlite", "journal", "file", "memory"})
+    public String backend;
+
+    private Path directory;
+    private RotationStorage storage;
+    private RotationPool pool;
+    private List<QueuedMessage> queue;
+    private int counter;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("arm-storage-bench");
+        storage = createStorage(directory.toFile());
+        storage.initialize();
+
+        pool = new RotationPool(MESSAGES_PER_GROUP);
+        for (int i = 0; i < MESSAGES_PER_GROUP; i++) {
+            pool.add(i);
+        }
+        pool.reset();
+        for (int i = 0; i < GROUPS; i++) {
+            storage.saveRotationCycle("group" + i, pool.getCycle());
+        }
+
+        queue = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < QUEUE_DEPTH; i++) {
+            queue.add(new QueuedMessage(0, "group" + i, i, now + i * 60000L));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        storage.close();
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private RotationStorage createStorage(File folder) {
+        Logger logger = Logger.getLogger("StorageBenchmark");
+        switch (backend) {
+            case "sqlite":
+                return new DatabaseManager(logger, new File(folder, "messages.db"));
+            case "journal":
+                return new JournalRotationStorage(logger, folder);
+            case "file":
+                return new FlatFileRotationStorage(logger, new File(folder, "rotation-state.dat"));
+            default:
+                return new InMemoryRotationStorage();
+        }
+    }
+
+    private String nextGroup() {
+        return "group" + (counter % GROUPS);
+    }
+
+    // One send: advance the cycle and save it. Cost on the calling thread; backends with write-behind return early
+    @Benchmark
+    public void saveAfterSend() {
+        storage.saveRotationCycle(nextGroup(), nextCycle());
+        counter++;
+    }
+
+    // Follows the write with a read, which waits for any write-behind queue to drain
+    @Benchmark
+    public long saveAfterSendFlushed() {
+        storage.saveRotationCycle(nextGroup(), nextCycle());
+        counter++;
+        return storage.loadQueue().size();
+    }
+
+    @Benchmark
+    public void startNewCycle() {
+        pool.reset();
+        storage.saveRotationCycle("group" + (counter++ % GROUPS), pool.getCycle());
+    }
+
+    // A message added mid-cycle and then deleted again, each saving the group's cycle
+    @Benchmark
+    public void addAndRemoveMessage() {
+        String groupId = nextGroup();
+        int messageId = MESSAGES_PER_GROUP + (counter++ % MESSAGES_PER_GROUP);
+        pool.add(messageId);
+        storage.saveRotationCycle(groupId, pool.getCycle());
+        pool.remove(messageId);
+        storage.saveRotationCycle(groupId, pool.getCycle());
+    }
+
+    private RotationCycle nextCycle() {
+        if (pool.getAvailableCount() == 0) {
+            pool.reset();
+        }
+        pool.markSent(pool.pickAvailable());
+        return pool.getCycle();
+    }
+
+    // The scheduler's once-per-pass save of a full overflow queue
+    @Benchmark
+    public void saveQueue() {
+        storage.saveQueue(queue);
+    }
+
+    @Benchmark
+    public List<QueuedMessage> loadQueue() {
+        return storage.loadQueue();
+    }
+
+    @Benchmark
+    public Map<String, RotationCycle> loadRotationCycles() {
+        return storage.loadRotationCycles();
+    }
+}
@@ -0,0 +1,70 @@
+package com.advancedrotating.messages.config;
+
+import com.advancedrotating.messages.models.MessageGroup;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Parsing and serializing groups.yml. Lives in the config package to reach ConfigManager's package-private helpers
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class GroupConfigBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int groupCount;
+
+    @Param({"10", "100"})
+    public int messagesPerGroup;
+
+    private Map<String, MessageGroup> groups;
+    private String yaml;
+
+    @Setup
+    public void setup() {
+        Map<String, MessageGroup> built = new LinkedHashMap<>();
+        for (int i = 0; i < groupCount; i++) {
+            String groupId = "group" + i;
+            List<String> messages = new ArrayList<>(messagesPerGroup);
+            for (int j = 0; j < messagesPerGroup; j++) {
+                messages.add("&7Message " + j + " for {player} in group " + groupId);
+            }
+            built.put(groupId, new MessageGroup(groupId, "Group " + i, 1 + i % 60, "&a[" + groupId + "]&r ", "", messages));
+        }
+        groups = Collections.unmodifiableMap(built);
+        yaml = ConfigManager.serializeGroups(groups);
+    }
+
+    @Benchmark
+    public Map<String, MessageGroup> load() throws InvalidConfigurationException {
+        YamlConfiguration config = new YamlConfiguration();
+        config.loadFromString(yaml);
+        return ConfigManager.parseGroups(config);
+    }
+
+    @Benchmark
+    public String save() {
+        return ConfigManager.serializeGroups(groups);
+    }
+}
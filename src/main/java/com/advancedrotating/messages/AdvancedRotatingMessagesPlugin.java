@@ -1,22 +1,44 @@
 package com.advancedrotating.messages;
 
 import org.bukkit.plugin.java.JavaPlugin;
-import org.bukkit.scheduler.BukkitRunnable;
 
 import com.advancedrotating.messages.config.ConfigManager;
 import com.advancedrotating.messages.database.DatabaseManager;
 import com.advancedrotating.messages.commands.ARMCommand;
+import com.advancedrotating.messages.scheduler.AudienceIndex;
+import com.advancedrotating.messages.scheduler.BukkitTaskScheduler;
+import com.advancedrotating.messages.scheduler.FoliaTaskScheduler;
+import com.advancedrotating.messages.scheduler.IoExecutor;
 import com.advancedrotating.messages.scheduler.MessageScheduler;
+import com.advancedrotating.messages.scheduler.TaskScheduler;
 import com.advancedrotating.messages.managers.GroupManager;
+import com.advancedrotating.messages.metrics.InstrumentedRotationStorage;
+import com.advancedrotating.messages.metrics.PluginMetrics;
+import com.advancedrotating.messages.rotation.RotationManager;
+import com.advancedrotating.messages.search.MessageSearch;
+import com.advancedrotating.messages.storage.FlatFileRotationStorage;
+import com.advancedrotating.messages.storage.InMemoryRotationStorage;
+import com.advancedrotating.messages.storage.JournalRotationStorage;
+import com.advancedrotating.messages.storage.MaintenanceReport;
+import com.advancedrotating.messages.storage.RotationStorage;
 
 import java.io.File;
 
 public class AdvancedRotatingMessagesPlugin extends JavaPlugin {
 
+    private static final long IO_SHUTDOWN_TIMEOUT = 5000;
+
+    private TaskScheduler taskScheduler;
+    private IoExecutor ioExecutor;
+    private PluginMetrics metrics;
     private ConfigManager configManager;
-    private DatabaseManager databaseManager;
+    private RotationStorage storage;
+    private RotationManager rotationManager;
     private MessageScheduler messageScheduler;
+    private AudienceIndex audienceIndex;
     private GroupManager groupManager;
+    private MessageSearch messageSearch;
+    private TaskScheduler.Task maintenanceTask;
 
     @Override
     public void onEnable() {
@@ -27,18 +49,43 @@ public class AdvancedRotatingMessagesPlugin extends JavaPlugin {
             dataFolder.mkdirs();
         }
 
+        taskScheduler = createTaskScheduler();
+        ioExecutor = new IoExecutor(taskScheduler, getLogger());
+        metrics = new PluginMetrics(getLogger());
+
         configManager = new ConfigManager(this);
+        configManager.load();
+
+        storage = new InstrumentedRotationStorage(createStorage(configManager.getStorageType()), metrics);
+        storage.initialize();
 
-        databaseManager = new DatabaseManager(this);
-        databaseManager.initialize();
+        rotationManager = new RotationManager(storage);
+        rotationManager.load();
 
-        groupManager = new GroupManager(this, configManager, databaseManager);
+        groupManager = new GroupManager(this, configManager, rotationManager);
         groupManager.initializeAllGroups();
 
-        messageScheduler = new MessageScheduler(this, configManager, databaseManager);
+        messageSearch = new MessageSearch(this, configManager);
+        messageSearch.rebuild();
+
+        audienceIndex = new AudienceIndex(this, configManager);
+        audienceIndex.start();
+
+        messageScheduler = new MessageScheduler(this, configManager, storage, rotationManager, audienceIndex);
         messageScheduler.start();
 
-        getCommand("arm").setExecutor(new ARMCommand(this, configManager, databaseManager));
+        metrics.registerGauge("storage.pending-writes", storage::getPendingWriteCount);
+        metrics.registerGauge("scheduler.scheduled-groups", messageScheduler::getScheduledGroupCount);
+        metrics.registerGauge("scheduler.queued-messages", messageScheduler::getQueuedMessageCount);
+        metrics.registerMBean();
+
+        if (storage.supportsMaintenance()) {
+            long maintenanceInterval = 20L * 60L * configManager.getMaintenanceInterval();
+            // Maintenance holds the connection monitor across native SQLite calls, so it stays on a platform thread
+            maintenanceTask = taskScheduler.runAsyncTimer(this::runDatabaseMaintenance, maintenanceInterval, maintenanceInterval);
+        }
+
+        getCommand("arm").setExecutor(new ARMCommand(this, configManager, storage));
 
         getLogger().info("AdvancedRotatingMessages has been enabled successfully!");
     }
@@ -51,19 +98,87 @@ public class AdvancedRotatingMessagesPlugin extends JavaPlugin {
             messageScheduler.stop();
         }
 
-        if (databaseManager != null) {
-            databaseManager.close();
+        if (maintenanceTask != null) {
+            maintenanceTask.cancel();
+        }
+
+        if (configManager != null) {
+            configManager.shutdown();
+        }
+
+        if (ioExecutor != null) {
+            ioExecutor.shutdown(IO_SHUTDOWN_TIMEOUT);
+        }
+
+        if (storage != null) {
+            storage.close();
+        }
+
+        if (metrics != null) {
+            metrics.unregisterMBean();
         }
 
         getLogger().info("AdvancedRotatingMessages has been disabled successfully!");
     }
 
+    private TaskScheduler createTaskScheduler() {
+        if (FoliaTaskScheduler.isSupported()) {
+            try {
+                getLogger().info("Folia detected, using region schedulers");
+                return new FoliaTaskScheduler(this);
+            } catch (ReflectiveOperationException e) {
+                getLogger().severe("Failed to access the Folia schedulers: " + e.getMessage());
+            }
+        }
+        return new BukkitTaskScheduler(this);
+    }
+
+    private RotationStorage createStorage(String type) {
+        switch (type) {
+            case "memory":
+                return new InMemoryRotationStorage();
+            case "file":
+                return new FlatFileRotationStorage(getLogger(), new File(getDataFolder(), "rotation-state.dat"));
+            case "journal":
+                return new JournalRotationStorage(getLogger(), getDataFolder());
+            case "sqlite":
+                return new DatabaseManager(this);
+            default:
+                getLogger().warning("Unknown storage type '" + type + "', falling back to sqlite");
+                return new DatabaseManager(this);
+        }
+    }
+
+    public MaintenanceReport runDatabaseMaintenance() {
+        MaintenanceReport report = storage.runMaintenance(configManager.getVacuumPagesPerStep());
+        if (report != null && report.getReclaimedBytes() > 0) {
+            getLogger().info("Database maintenance reclaimed " + report.getReclaimedBytes() + " bytes");
+        }
+        return report;
+    }
+
+    public TaskScheduler getTaskScheduler() {
+        return taskScheduler;
+    }
+
+    public IoExecutor getIoExecutor() {
+        return ioExecutor;
+    }
+
+    public PluginMetrics getMetrics() {
+        return metrics;
+    }
+
     public ConfigManager getConfigManager() {
         return configManager;
     }
 
-    public DatabaseManager getDatabaseManager() {
-        return databaseManager;
+    public RotationStorage getStorage() {
+        return storage;
+    }
+
+    public RotationManager getRotationManager() {
+        return rotationManager;
     }
 
     public MessageScheduler getMessageScheduler() {
@@ -73,4 +188,8 @@ public class AdvancedRotatingMessagesPlugin extends JavaPlugin {
     public GroupManager getGroupManager() {
         return groupManager;
     }
+
+    public MessageSearch getMessageSearch() {
+        return messageSearch;
+    }
 }
\ No newline at end of file
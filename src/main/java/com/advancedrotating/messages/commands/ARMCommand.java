@@ -2,9 +2,13 @@ package com.advancedrotating.messages.commands;
 
 import com.advancedrotating.messages.AdvancedRotatingMessagesPlugin;
 import com.advancedrotating.messages.config.ConfigManager;
-import com.advancedrotating.messages.database.DatabaseManager;
 import com.advancedrotating.messages.managers.GroupManager;
+import com.advancedrotating.messages.metrics.PluginMetrics;
+import com.advancedrotating.messages.metrics.TimerSnapshot;
 import com.advancedrotating.messages.models.MessageGroup;
+import com.advancedrotating.messages.search.MessageSearch;
+import com.advancedrotating.messages.storage.MaintenanceReport;
+import com.advancedrotating.messages.storage.RotationStorage;
 
 import org.bukkit.ChatColor;
 import org.bukkit.command.Command;
@@ -21,21 +25,29 @@ public class ARMCommand implements CommandExecutor, TabCompleter {
 
     private final AdvancedRotatingMessagesPlugin plugin;
     private final ConfigManager configManager;
-    private final DatabaseManager databaseManager;
+    private final RotationStorage storage;
     private final GroupManager groupManager;
+    private final CompletionIndex completionIndex;
 
-    public ARMCommand(AdvancedRotatingMessagesPlugin plugin, ConfigManager configManager, DatabaseManager databaseManager) {
+    public ARMCommand(AdvancedRotatingMessagesPlugin plugin, ConfigManager configManager, RotationStorage storage) {
         this.plugin = plugin;
         this.configManager = configManager;
-        this.databaseManager = databaseManager;
-        this.groupManager = new GroupManager(plugin, configManager, databaseManager);
+        this.storage = storage;
+        this.groupManager = plugin.getGroupManager();
+        this.completionIndex = new CompletionIndex(configManager);
     }
 
+    // Folia runs player commands on the player's region thread; plugin state is only touched from the global one
     @Override
     public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        plugin.getTaskScheduler().runGlobal(() -> dispatch(sender, args));
+        return true;
+    }
+
+    private void dispatch(CommandSender sender, String[] args) {
         if (args.length == 0) {
             sendHelp(sender);
-            return true;
+            return;
         }
 
         String subCommand = args[0].toLowerCase();
@@ -65,12 +77,19 @@ public class ARMCommand implements CommandExecutor, TabCompleter {
             case "reload":
                 handleReload(sender);
                 break;
+            case "maintenance":
+                handleMaintenance(sender, args);
+                break;
+            case "search":
+                handleSearch(sender, args);
+                break;
+            case "stats":
+                handleStats(sender, args);
+                break;
             default:
                 sender.sendMessage(ChatColor.RED + "Unknown subcommand. Use /arm help for available commands.");
                 break;
         }
-
-        return true;
     }
 
     private void sendHelp(CommandSender sender) {
@@ -85,7 +104,11 @@ public class ARMCommand implements CommandExecutor, TabCompleter {
         sender.sendMessage(ChatColor.YELLOW + "/arm messages <group> edit <index> <message> " + ChatColor.WHITE + "- Edit message in group");
         sender.sendMessage(ChatColor.YELLOW + "/arm messages <group> delete <index> " + ChatColor.WHITE + "- Delete message from group");
         sender.sendMessage(ChatColor.YELLOW + "/arm messages <group> force <index> " + ChatColor.WHITE + "- Force send a message");
+        sender.sendMessage(ChatColor.YELLOW + "/arm messages <group> weight <index> <weight> " + ChatColor.WHITE + "- Set how often a message comes up early");
+        sender.sendMessage(ChatColor.YELLOW + "/arm search <text> [page] " + ChatColor.WHITE + "- Search messages in all groups");
         sender.sendMessage(ChatColor.YELLOW + "/arm reload " + ChatColor.WHITE + "- Reload configuration");
+        sender.sendMessage(ChatColor.YELLOW + "/arm maintenance [run] " + ChatColor.WHITE + "- Show or run database cleanup");
+        sender.sendMessage(ChatColor.YELLOW + "/arm stats [reset] " + ChatColor.WHITE + "- Show timing statistics");
     }
 
     private void handleListGroups(CommandSender sender) {
@@ -104,7 +127,7 @@ public class ARMCommand implements CommandExecutor, TabCompleter {
         sender.sendMessage(ChatColor.GOLD + "=== Message Groups ===");
         for (MessageGroup group : groups.values()) {
             sender.sendMessage(ChatColor.YELLOW + group.getId() + " " + ChatColor.WHITE + "(" + group.getName() + ") - " +
-                ChatColor.GRAY + group.getMessageCount() + " messages, " + group.getFrequency() + " min frequency");
+                ChatColor.GRAY + group.getMessageCount() + " messages, " + group.getFrequency() + " " + configManager.getTimeUnit() + " frequency");
         }
     }
 
@@ -129,10 +152,16 @@ public class ARMCommand implements CommandExecutor, TabCompleter {
 
         sender.sendMessage(ChatColor.GOLD + "=== Group Information: " + group.getId() + " ===");
         sender.sendMessage(ChatColor.YELLOW + "Name: " + ChatColor.WHITE + group.getName());
-        sender.sendMessage(ChatColor.YELLOW + "Frequency: " + ChatColor.WHITE + group.getFrequency() + " minutes");
+        sender.sendMessage(ChatColor.YELLOW + "Frequency: " + ChatColor.WHITE + group.getFrequency() + " " + configManager.getTimeUnit());
         sender.sendMessage(ChatColor.YELLOW + "Prefix: " + ChatColor.WHITE + group.getPrefix());
         sender.sendMessage(ChatColor.YELLOW + "Suffix: " + ChatColor.WHITE + group.getSuffix());
         sender.sendMessage(ChatColor.YELLOW + "Messages: " + ChatColor.WHITE + group.getMessageCount());
+        if (!group.getPermission().isEmpty()) {
+            sender.sendMessage(ChatColor.YELLOW + "Permission: " + ChatColor.WHITE + group.getPermission());
+        }
+        if (!group.getWorlds().isEmpty()) {
+            sender.sendMessage(ChatColor.YELLOW + "Worlds: " + ChatColor.WHITE + String.join(", ", group.getWorlds()));
+        }
     }
 
     private void handleCreateGroup(CommandSender sender, String[] args) {
@@ -200,11 +229,13 @@ public class ARMCommand implements CommandExecutor, TabCompleter {
         String prefix = args.length > 4 ? args[4] : "";
         String suffix = args.length > 5 ? args[5] : "";
 
-        if (groupManager.updateGroup(groupId, name, frequency, prefix, suffix)) {
-            sender.sendMessage(ChatColor.GREEN + "Group '" + groupId + "' updated successfully.");
-        } else {
-            sender.sendMessage(ChatColor.RED + "Group '" + groupId + "' not found.");
-        }
+        groupManager.updateGroup(groupId, name, frequency, prefix, suffix, updated -> {
+            if (updated) {
+                sender.sendMessage(ChatColor.GREEN + "Group '" + groupId + "' updated successfully.");
+            } else {
+                sender.sendMessage(ChatColor.RED + "Group '" + groupId + "' not found.");
+            }
+        });
     }
 
     private void handleDeleteGroup(CommandSender sender, String[] args) {
@@ -220,16 +251,18 @@ public class ARMCommand implements CommandExecutor, TabCompleter {
 
         String groupId = args[1];
 
-        if (groupManager.deleteGroup(groupId)) {
-            sender.sendMessage(ChatColor.GREEN + "Group '" + groupId + "' deleted successfully.");
-        } else {
-            sender.sendMessage(ChatColor.RED + "Group '" + groupId + "' not found.");
-        }
+        groupManager.deleteGroup(groupId, deleted -> {
+            if (deleted) {
+                sender.sendMessage(ChatColor.GREEN + "Group '" + groupId + "' deleted successfully.");
+            } else {
+                sender.sendMessage(ChatColor.RED + "Group '" + groupId + "' not found.");
+            }
+        });
     }
 
     private void handleMessagesCommand(CommandSender sender, String[] args) {
         if (args.length < 3) {
-            sender.sendMessage(ChatColor.RED + "Usage: /arm messages <group> <list|add|edit|delete|force> [args...]");
+            sender.sendMessage(ChatColor.RED + "Usage: /arm messages <group> <list|add|edit|delete|force|weight> [args...]");
             return;
         }
 
@@ -258,8 +291,11 @@ public class ARMCommand implements CommandExecutor, TabCompleter {
             case "force":
                 handleForceMessage(sender, groupId, args);
                 break;
+            case "weight":
+                handleWeightMessage(sender, groupId, args);
+                break;
             default:
-                sender.sendMessage(ChatColor.RED + "Unknown message command. Use list, add, edit, delete, or force.");
+                sender.sendMessage(ChatColor.RED + "Unknown message command. Use list, add, edit, delete, force, or weight.");
                 break;
         }
     }
@@ -282,24 +318,27 @@ public class ARMCommand implements CommandExecutor, TabCompleter {
         }
 
         int pageSize = 10;
-        List<String> messages = groupManager.getMessagesPage(groupId, page, pageSize);
+        int listPage = page;
         int totalPages = groupManager.getTotalPages(groupId, pageSize);
 
-        if (messages.isEmpty()) {
-            sender.sendMessage(ChatColor.YELLOW + "No messages found on page " + page + ".");
-            return;
-        }
+        // File-backed groups read each message from disk, so the page is copied on an I/O thread
+        plugin.getIoExecutor().submit(() -> new ArrayList<>(groupManager.getMessagesPage(groupId, listPage, pageSize)), messages -> {
+            if (messages.isEmpty()) {
+                sender.sendMessage(ChatColor.YELLOW + "No messages found on page " + listPage + ".");
+                return;
+            }
 
-        sender.sendMessage(ChatColor.GOLD + "=== Messages in " + groupId + " (Page " + page + "/" + totalPages + ") ===");
-        int startIndex = (page - 1) * pageSize;
-        for (int i = 0; i < messages.size(); i++) {
-            int messageIndex = startIndex + i;
-            sender.sendMessage(ChatColor.YELLOW + "[" + messageIndex + "] " + ChatColor.WHITE + messages.get(i));
-        }
+            sender.sendMessage(ChatColor.GOLD + "=== Messages in " + groupId + " (Page " + listPage + "/" + totalPages + ") ===");
+            int startIndex = (listPage - 1) * pageSize;
+            for (int i = 0; i < messages.size(); i++) {
+                int messageIndex = startIndex + i;
+                sender.sendMessage(ChatColor.YELLOW + "[" + messageIndex + "] " + ChatColor.WHITE + messages.get(i));
+            }
 
-        if (page < totalPages) {
-            sender.sendMessage(ChatColor.GRAY + "Use /arm messages " + groupId + " list " + (page + 1) + " for next page.");
-        }
+            if (listPage < totalPages) {
+                sender.sendMessage(ChatColor.GRAY + "Use /arm messages " + groupId + " list " + (listPage + 1) + " for next page.");
+            }
+        });
     }
 
     private void handleAddMessage(CommandSender sender, String groupId, String[] args) {
@@ -321,11 +360,13 @@ public class ARMCommand implements CommandExecutor, TabCompleter {
 
         String message = messageBuilder.toString();
 
-        if (groupManager.addMessage(groupId, message)) {
-            sender.sendMessage(ChatColor.GREEN + "Message added to group '" + groupId + "'.");
-        } else {
-            sender.sendMessage(ChatColor.RED + "Failed to add message to group '" + groupId + "'.");
-        }
+        groupManager.addMessage(groupId, message, added -> {
+            if (added) {
+                sender.sendMessage(ChatColor.GREEN + "Message added to group '" + groupId + "'.");
+            } else {
+                sender.sendMessage(ChatColor.RED + "Failed to add message to group '" + groupId + "'.");
+            }
+        });
     }
 
     private void handleEditMessage(CommandSender sender, String groupId, String[] args) {
@@ -355,11 +396,13 @@ public class ARMCommand implements CommandExecutor, TabCompleter {
 
         String newMessage = messageBuilder.toString();
 
-        if (groupManager.updateMessage(groupId, messageIndex, newMessage)) {
-            sender.sendMessage(ChatColor.GREEN + "Message updated in group '" + groupId + "'.");
-        } else {
-            sender.sendMessage(ChatColor.RED + "Failed to update message. Check the index and try again.");
-        }
+        groupManager.updateMessage(groupId, messageIndex, newMessage, updated -> {
+            if (updated) {
+                sender.sendMessage(ChatColor.GREEN + "Message updated in group '" + groupId + "'.");
+            } else {
+                sender.sendMessage(ChatColor.RED + "Failed to update message. Check the index and try again.");
+            }
+        });
     }
 
     private void handleDeleteMessage(CommandSender sender, String groupId, String[] args) {
@@ -381,11 +424,49 @@ public class ARMCommand implements CommandExecutor, TabCompleter {
             return;
         }
 
-        if (groupManager.deleteMessage(groupId, messageIndex)) {
-            sender.sendMessage(ChatColor.GREEN + "Message deleted from group '" + groupId + "'.");
-        } else {
-            sender.sendMessage(ChatColor.RED + "Failed to delete message. Check the index and try again.");
+        groupManager.deleteMessage(groupId, messageIndex, deleted -> {
+            if (deleted) {
+                sender.sendMessage(ChatColor.GREEN + "Message deleted from group '" + groupId + "'.");
+            } else {
+                sender.sendMessage(ChatColor.RED + "Failed to delete message. Check the index and try again.");
+            }
+        });
+    }
+
+    private void handleWeightMessage(CommandSender sender, String groupId, String[] args) {
+        if (!sender.hasPermission("advancedrotating.message.edit")) {
+            sender.sendMessage(ChatColor.RED + "You don't have permission to edit messages.");
+            return;
+        }
+
+        if (args.length < 5) {
+            sender.sendMessage(ChatColor.RED + "Usage: /arm messages <group> weight <index> <weight>");
+            return;
+        }
+
+        int messageIndex;
+        int weight;
+        try {
+            messageIndex = Integer.parseInt(args[3]);
+            weight = Integer.parseInt(args[4]);
+        } catch (NumberFormatException e) {
+            sender.sendMessage(ChatColor.RED + "Message index and weight must be numbers.");
+            return;
+        }
+
+        if (weight < 1) {
+            sender.sendMessage(ChatColor.RED + "Weight must be at least 1.");
+            return;
         }
+
+        groupManager.setMessageWeight(groupId, messageIndex, weight, updated -> {
+            if (updated) {
+                sender.sendMessage(ChatColor.GREEN + "Message " + messageIndex + " in group '" + groupId + "' now has weight " + weight
+                    + ". It takes effect from the next cycle.");
+            } else {
+                sender.sendMessage(ChatColor.RED + "Failed to set weight. Check the index and try again.");
+            }
+        });
     }
 
     private void handleForceMessage(CommandSender sender, String groupId, String[] args) {
@@ -423,9 +504,163 @@ public class ARMCommand implements CommandExecutor, TabCompleter {
             return;
         }
 
-        configManager.reloadConfig();
-        plugin.getMessageScheduler().reloadScheduler();
-        sender.sendMessage(ChatColor.GREEN + "Advanced Rotating Messages configuration reloaded.");
+        groupManager.reloadGroups(() -> {
+            plugin.getMessageScheduler().reloadScheduler();
+            plugin.getMessageSearch().rebuild();
+            sender.sendMessage(ChatColor.GREEN + "Advanced Rotating Messages configuration reloaded.");
+        }, () -> sender.sendMessage(ChatColor.RED + "Could not reload: unsaved group edits could not be written to groups.yml. Check the console."));
+    }
+
+    private void handleSearch(CommandSender sender, String[] args) {
+        if (!sender.hasPermission("advancedrotating.message.list")) {
+            sender.sendMessage(ChatColor.RED + "You don't have permission to search messages.");
+            return;
+        }
+
+        if (args.length < 2) {
+            sender.sendMessage(ChatColor.RED + "Usage: /arm search <text> [page]");
+            return;
+        }
+
+        // A trailing number is a page number, unless it is the only search word
+        int page = 1;
+        int textEnd = args.length;
+        if (args.length > 2) {
+            try {
+                page = Math.max(1, Integer.parseInt(args[args.length - 1]));
+                textEnd--;
+            } catch (NumberFormatException e) {
+                page = 1;
+            }
+        }
+
+        String query = String.join(" ", Arrays.copyOfRange(args, 1, textEnd));
+        if (query.length() < MessageSearch.MIN_QUERY_LENGTH) {
+            sender.sendMessage(ChatColor.RED + "Search text must be at least " + MessageSearch.MIN_QUERY_LENGTH + " characters.");
+            return;
+        }
+
+        int searchPage = page;
+        plugin.getMessageSearch().search(query, searchPage, 10, found -> {
+            if (found.getTotalMatches() == 0) {
+                sender.sendMessage(ChatColor.YELLOW + "No messages match \"" + query + "\".");
+                return;
+            }
+
+            if (searchPage > found.getTotalPages()) {
+                sender.sendMessage(ChatColor.YELLOW + "No results on page " + searchPage + ".");
+                return;
+            }
+
+            sender.sendMessage(ChatColor.GOLD + "=== " + found.getTotalMatches() + " matches for \"" + query + "\" (Page " + searchPage + "/"
+                + found.getTotalPages() + ") ===");
+            for (MessageSearch.Result result : found.getResults()) {
+                sender.sendMessage(ChatColor.YELLOW + result.getGroupId() + " [" + result.getIndex() + "] " + ChatColor.WHITE + result.getMessage());
+            }
+
+            if (searchPage < found.getTotalPages()) {
+                sender.sendMessage(ChatColor.GRAY + "Use /arm search " + query + " " + (searchPage + 1) + " for next page.");
+            }
+        });
+    }
+
+    private void handleMaintenance(CommandSender sender, String[] args) {
+        if (!sender.hasPermission("advancedrotating.admin")) {
+            sender.sendMessage(ChatColor.RED + "You don't have permission to run database maintenance.");
+            return;
+        }
+
+        if (!storage.supportsMaintenance()) {
+            sender.sendMessage(ChatColor.YELLOW + "The configured storage backend does not need database maintenance.");
+            return;
+        }
+
+        if (args.length > 1 && args[1].equalsIgnoreCase("run")) {
+            if (storage.isMaintenanceRunning()) {
+                sender.sendMessage(ChatColor.YELLOW + "Database maintenance is already running.");
+                return;
+            }
+
+            sender.sendMessage(ChatColor.YELLOW + "Running database maintenance...");
+            plugin.getTaskScheduler().runAsync(() -> {
+                MaintenanceReport report = plugin.runDatabaseMaintenance();
+                plugin.getTaskScheduler().runGlobal(() -> {
+                    if (report == null) {
+                        sender.sendMessage(ChatColor.RED + "Database maintenance failed or is already running. Check the console.");
+                    } else {
+                        sendMaintenanceReport(sender, report);
+                    }
+                });
+            });
+            return;
+        }
+
+        MaintenanceReport report = storage.getLastMaintenanceReport();
+        if (report == null) {
+            sender.sendMessage(ChatColor.YELLOW + "Database maintenance has not run yet. Use /arm maintenance run to start it.");
+            return;
+        }
+
+        sendMaintenanceReport(sender, report);
+    }
+
+    private void sendMaintenanceReport(CommandSender sender, MaintenanceReport report) {
+        long minutesAgo = (System.currentTimeMillis() - report.getRunTime()) / (60 * 1000);
+        sender.sendMessage(ChatColor.GOLD + "=== Database Maintenance ===");
+        sender.sendMessage(ChatColor.YELLOW + "Last run: " + ChatColor.WHITE + minutesAgo + " minutes ago (" + report.getDuration() + "ms)");
+        sender.sendMessage(ChatColor.YELLOW + "Space reclaimed: " + ChatColor.WHITE + formatBytes(report.getReclaimedBytes()));
+        sender.sendMessage(ChatColor.YELLOW + "Database size: " + ChatColor.WHITE + formatBytes(report.getDatabaseSize()));
+    }
+
+    private void handleStats(CommandSender sender, String[] args) {
+        if (!sender.hasPermission("advancedrotating.admin")) {
+            sender.sendMessage(ChatColor.RED + "You don't have permission to view statistics.");
+            return;
+        }
+
+        PluginMetrics metrics = plugin.getMetrics();
+        if (args.length > 1 && args[1].equalsIgnoreCase("reset")) {
+            metrics.reset();
+            sender.sendMessage(ChatColor.GREEN + "Statistics reset.");
+            return;
+        }
+
+        sender.sendMessage(ChatColor.GOLD + "=== Timings (p50 / p99 / max) ===");
+        for (TimerSnapshot timer : metrics.getTimers()) {
+            if (timer.getCount() == 0) {
+                continue;
+            }
+            sender.sendMessage(ChatColor.YELLOW + timer.getName() + ": " + ChatColor.WHITE
+                + formatNanos(timer.getP50Nanos()) + " / " + formatNanos(timer.getP99Nanos()) + " / "
+                + formatNanos(timer.getMaxNanos()) + ChatColor.GRAY + " (" + timer.getCount() + " calls)");
+        }
+
+        for (Map.Entry<String, Long> counter : metrics.getCounters().entrySet()) {
+            sender.sendMessage(ChatColor.YELLOW + counter.getKey() + ": " + ChatColor.WHITE + counter.getValue());
+        }
+        for (Map.Entry<String, Long> gauge : metrics.getGauges().entrySet()) {
+            sender.sendMessage(ChatColor.YELLOW + gauge.getKey() + ": " + ChatColor.WHITE + gauge.getValue());
+        }
+    }
+
+    private String formatNanos(long nanos) {
+        if (nanos < 1000) {
+            return nanos + "ns";
+        }
+        if (nanos < 1000 * 1000) {
+            return String.format("%.1fus", nanos / 1000.0);
+        }
+        return String.format("%.2fms", nanos / (1000.0 * 1000.0));
+    }
+
+    private String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
     }
 
     @Override
@@ -433,7 +668,7 @@ public class ARMCommand implements CommandExecutor, TabCompleter {
         List<String> completions = new ArrayList<>();
 
         if (args.length == 1) {
-            List<String> subCommands = Arrays.asList("help", "list", "info", "create", "edit", "delete", "messages", "reload");
+            List<String> subCommands = Arrays.asList("help", "list", "info", "create", "edit", "delete", "messages", "search", "reload", "maintenance", "stats");
             for (String subCommand : subCommands) {
                 if (subCommand.toLowerCase().startsWith(args[0].toLowerCase())) {
                     completions.add(subCommand);
@@ -441,18 +676,17 @@ public class ARMCommand implements CommandExecutor, TabCompleter {
             }
         } else if (args.length == 2 && (args[0].equalsIgnoreCase("info") || args[0].equalsIgnoreCase("edit") ||
                    args[0].equalsIgnoreCase("delete") || args[0].equalsIgnoreCase("messages"))) {
-            for (String groupId : groupManager.getAllGroups().keySet()) {
-                if (groupId.toLowerCase().startsWith(args[1].toLowerCase())) {
-                    completions.add(groupId);
-                }
-            }
+            completions.addAll(completionIndex.completeGroupId(args[1]));
         } else if (args.length == 3 && args[0].equalsIgnoreCase("messages")) {
-            List<String> messageCommands = Arrays.asList("list", "add", "edit", "delete", "force");
+            List<String> messageCommands = Arrays.asList("list", "add", "edit", "delete", "force", "weight");
             for (String messageCommand : messageCommands) {
                 if (messageCommand.toLowerCase().startsWith(args[2].toLowerCase())) {
                     completions.add(messageCommand);
                 }
             }
+        } else if (args.length == 4 && args[0].equalsIgnoreCase("messages") && (args[2].equalsIgnoreCase("edit") ||
+                   args[2].equalsIgnoreCase("delete") || args[2].equalsIgnoreCase("force") || args[2].equalsIgnoreCase("weight"))) {
+            completions.addAll(completionIndex.completeMessageIndex(args[1], args[3]));
         }
 
         return completions;
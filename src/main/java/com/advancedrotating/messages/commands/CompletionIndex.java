@@ -0,0 +1,126 @@
+package com.advancedrotating.messages.commands;
+
+import com.advancedrotating.messages.config.ConfigManager;
+import com.advancedrotating.messages.models.MessageGroup;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Sorted group IDs for tab completion, rebuilt only when the group registry snapshot changes
+public class CompletionIndex {
+
+    private static final int MAX_INDEX_COMPLETIONS = 50;
+
+    private final ConfigManager configManager;
+    private volatile Snapshot snapshot;
+
+    public CompletionIndex(ConfigManager configManager) {
+        this.configManager = configManager;
+    }
+
+    public List<String> completeGroupId(String prefix) {
+        Snapshot current = currentSnapshot();
+        String lowerPrefix = prefix.toLowerCase(Locale.ROOT);
+
+        int position = Arrays.binarySearch(current.lowerIds, lowerPrefix);
+        if (position < 0) {
+            position = -position - 1;
+        }
+
+        List<String> completions = new ArrayList<>();
+        while (position < current.lowerIds.length && current.lowerIds[position].startsWith(lowerPrefix)) {
+            completions.add(current.ids[position]);
+            position++;
+        }
+        return completions;
+    }
+
+    // Message positions that start with the typed digits, shortest first: 1, 10..19, 100..199 and so on
+    public List<String> completeMessageIndex(String groupId, String prefix) {
+        MessageGroup group = configManager.getGroup(groupId);
+        List<String> completions = new ArrayList<>();
+        if (group == null || group.getMessageCount() == 0) {
+            return completions;
+        }
+
+        int count = group.getMessageCount();
+        ArrayDeque<Integer> pending = new ArrayDeque<>();
+        if (prefix.isEmpty()) {
+            for (int digit = 0; digit <= 9; digit++) {
+                pending.add(digit);
+            }
+        } else {
+            // Only the digits exactly as they would be completed: no sign and no leading zeros
+            if (!isIndexPrefix(prefix)) {
+                return completions;
+            }
+            try {
+                pending.add(Integer.parseInt(prefix));
+            } catch (NumberFormatException e) {
+                return completions;
+            }
+        }
+
+        while (!pending.isEmpty() && completions.size() < MAX_INDEX_COMPLETIONS) {
+            int index = pending.poll();
+            if (index >= count) {
+                continue;
+            }
+            completions.add(String.valueOf(index));
+            // Zero has no longer numbers that start with it
+            if (index > 0 && index <= (count - 1) / 10) {
+                for (int digit = 0; digit <= 9; digit++) {
+                    pending.add(index * 10 + digit);
+                }
+            }
+        }
+        return completions;
+    }
+
+    private static boolean isIndexPrefix(String prefix) {
+        if (prefix.equals("0")) {
+            return true;
+        }
+        if (prefix.charAt(0) < '1' || prefix.charAt(0) > '9') {
+            return false;
+        }
+        for (int i = 1; i < prefix.length(); i++) {
+            if (prefix.charAt(i) < '0' || prefix.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Snapshot currentSnapshot() {
+        Map<String, MessageGroup> groups = configManager.getGroups();
+        Snapshot current = snapshot;
+        if (current == null || current.source != groups) {
+            current = new Snapshot(groups);
+            snapshot = current;
+        }
+        return current;
+    }
+
+    private static final class Snapshot {
+        private final Map<String, MessageGroup> source;
+        private final String[] lowerIds;
+        private final String[] ids;
+
+        private Snapshot(Map<String, MessageGroup> source) {
+            this.source = source;
+
+            String[] sorted = source.keySet().toArray(new String[0]);
+            Arrays.sort(sorted, (a, b) -> a.toLowerCase(Locale.ROOT).compareTo(b.toLowerCase(Locale.ROOT)));
+            this.ids = sorted;
+            this.lowerIds = new String[sorted.length];
+            for (int i = 0; i < sorted.length; i++) {
+                lowerIds[i] = sorted[i].toLowerCase(Locale.ROOT);
+            }
+        }
+    }
+}
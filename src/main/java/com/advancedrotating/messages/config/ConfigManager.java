@@ -3,32 +3,127 @@ package com.advancedrotating.messages.config;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 import com.advancedrotating.messages.AdvancedRotatingMessagesPlugin;
+import com.advancedrotating.messages.models.FileMessageBodies;
+import com.advancedrotating.messages.models.MessageFile;
 import com.advancedrotating.messages.models.MessageGroup;
+import com.advancedrotating.messages.scheduler.TaskScheduler;
+import com.advancedrotating.messages.storage.AtomicFiles;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
 
 public class ConfigManager {
 
+    // Edits within this many ticks of each other are written to disk together
+    private static final long SAVE_DELAY = 40L;
+    private static final long SAVE_TIMEOUT = 5000;
+    private static final int MAX_FILE_NAME_ATTEMPTS = 100;
+
     private final AdvancedRotatingMessagesPlugin plugin;
     private final File groupsFile;
-    private FileConfiguration groupsConfig;
+    private final File messagesFolder;
+    // Not synchronized, so a virtual thread waiting for an earlier write can unmount
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private FileConfiguration settings;
+    private TaskScheduler.Task pendingSaveTask;
+    private boolean dirty;
+    private CompletableFuture<Void> lastSave = CompletableFuture.completedFuture(null);
+    private long saveGeneration;
+    private long writtenGeneration;
+
+    // Parsed groups, replaced wholesale on every load/save so readers on any thread see a consistent snapshot
+    private volatile Map<String, MessageGroup> groupRegistry = Collections.emptyMap();
 
     public ConfigManager(AdvancedRotatingMessagesPlugin plugin) {
         this.plugin = plugin;
         this.groupsFile = new File(plugin.getDataFolder(), "groups.yml");
-        loadConfig();
+        this.messagesFolder = new File(plugin.getDataFolder(), "messages");
     }
 
-    private void loadConfig() {
+    // Reads config.yml and groups.yml at startup, then moves groups over the lazy-load threshold to message files
+    public void load() {
+        long start = System.nanoTime();
+        plugin.saveDefaultConfig();
+        plugin.reloadConfig();
+        settings = plugin.getConfig();
+
         if (!groupsFile.exists()) {
             createDefaultConfig();
         }
-        groupsConfig = YamlConfiguration.loadConfiguration(groupsFile);
+        groupRegistry = parseGroups(YamlConfiguration.loadConfiguration(groupsFile), messagesFolder, plugin.getLogger());
+        prepareMessageFiles();
+        plugin.getMetrics().record("config.load", start);
+    }
+
+    // Startup only: moves large inline groups into message files when messages.lazy-load-threshold is set, and compacts
+    // files with many superseded records. Not done on reload, since compaction moves records that older group snapshots
+    // may still point at.
+    private void prepareMessageFiles() {
+        int threshold = getLazyLoadThreshold();
+        Map<String, MessageGroup> updated = new LinkedHashMap<>(groupRegistry);
+        boolean migrated = false;
+
+        for (MessageGroup group : groupRegistry.values()) {
+            if (group.getBodies() instanceof FileMessageBodies fileBodies) {
+                if (fileBodies.needsCompaction()) {
+                    fileBodies.compact();
+                }
+                continue;
+            }
+
+            if (threshold <= 0 || group.getMessageCount() < threshold) {
+                continue;
+            }
+
+            try {
+                MessageFile file = createMessageFile(group);
+                MessageFile.Index index = file.readIndex();
+                MessageGroup fileBacked = new MessageGroup(group.getId(), group.getName(), group.getFrequency(), group.getPrefix(),
+                    group.getSuffix(), new FileMessageBodies(file, index.getOffsets()), group.getMessageIds(), group.getNextMessageId());
+                fileBacked.setPermission(group.getPermission());
+                fileBacked.setWorlds(group.getWorlds());
+                fileBacked.getWeights().putAll(group.getWeights());
+                updated.put(group.getId(), fileBacked);
+                migrated = true;
+                plugin.getLogger().warning("Group " + group.getId() + " has " + group.getMessageCount() + " messages, at or above"
+                    + " messages.lazy-load-threshold: its messages were moved out of groups.yml into messages/"
+                    + file.getPath().getFileName() + ". Edit them there from now on.");
+            } catch (IOException e) {
+                plugin.getLogger().severe("Could not move messages of group " + group.getId() + " to a message file: " + e.getMessage());
+            }
+        }
+
+        if (migrated) {
+            groupRegistry = Collections.unmodifiableMap(updated);
+            saveConfig();
+        }
+    }
+
+    // Group IDs are free text, so they are reduced to a safe file name, and an existing file is never overwritten
+    private MessageFile createMessageFile(MessageGroup group) throws IOException {
+        String base = group.getId().replaceAll("[^A-Za-z0-9_-]", "_");
+        for (int attempt = 0; attempt < MAX_FILE_NAME_ATTEMPTS; attempt++) {
+            String name = attempt == 0 ? base + ".txt" : base + "-" + attempt + ".txt";
+            try {
+                return MessageFile.create(new File(messagesFolder, name).toPath(), plugin.getLogger(), group.getMessageIds(), group.getMessages());
+            } catch (FileAlreadyExistsException e) {
+                // Left over from an earlier run or another group; try the next name
+            }
+        }
+        throw new IOException("no free file name for " + base + ".txt in messages/");
     }
 
     private void createDefaultConfig() {
@@ -62,23 +157,160 @@ public class ConfigManager {
         }
     }
 
+    // Marks the registry dirty; the actual write is debounced and happens off the main thread
     public void saveConfig() {
+        dirty = true;
+        if (pendingSaveTask != null) {
+            return;
+        }
+
+        pendingSaveTask = plugin.getTaskScheduler().runGlobalLater(() -> {
+            pendingSaveTask = null;
+            submitSave();
+        }, SAVE_DELAY);
+    }
+
+    // Returns false when the registry could not be written; the edits stay dirty so a later flush tries again
+    public boolean flushPendingSave() {
+        if (pendingSaveTask != null) {
+            pendingSaveTask.cancel();
+            pendingSaveTask = null;
+        }
+
         try {
-            groupsConfig.save(groupsFile);
-        } catch (IOException e) {
-            plugin.getLogger().severe("Could not save groups.yml: " + e.getMessage());
+            // Also waits for any save already in flight, since older snapshots are never written after newer ones
+            submitSave().get(SAVE_TIMEOUT, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            plugin.getLogger().severe("Could not flush groups.yml: " + e.getMessage());
         }
+        dirty = true;
+        return false;
     }
 
-    public void reloadConfig() {
-        groupsConfig = YamlConfiguration.loadConfiguration(groupsFile);
+    public void shutdown() {
+        if (!flushPendingSave()) {
+            plugin.getLogger().severe("Group edits made since the last successful save were not written to groups.yml");
+        }
+    }
+
+    private CompletableFuture<Void> submitSave() {
+        if (!dirty) {
+            return lastSave;
+        }
+
+        dirty = false;
+        Map<String, MessageGroup> snapshot = groupRegistry;
+        long generation = ++saveGeneration;
+        lastSave = plugin.getIoExecutor().supply(() -> {
+            writeGroups(snapshot, generation);
+            return null;
+        });
+        lastSave.whenComplete((result, error) -> {
+            if (error == null) {
+                return;
+            }
+            plugin.getLogger().severe("Could not save groups.yml: " + error.getMessage());
+            // The registry is still newer than the file, so mark it dirty again and retry with the next debounce
+            if (plugin.isEnabled()) {
+                plugin.getTaskScheduler().runGlobal(this::saveConfig);
+            }
+        });
+        return lastSave;
+    }
+
+    // Saves run on separate I/O threads, so one that starts after a newer snapshot was written is skipped
+    private void writeGroups(Map<String, MessageGroup> groups, long generation) throws IOException {
+        writeLock.lock();
+        try {
+            if (generation < writtenGeneration) {
+                return;
+            }
+
+            long start = System.nanoTime();
+            AtomicFiles.write(groupsFile.toPath(), serializeGroups(groups).getBytes(StandardCharsets.UTF_8));
+            writtenGeneration = generation;
+            plugin.getMetrics().record("config.save", start);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Registry snapshots are never mutated, so this is safe to run on the writer thread
+    static String serializeGroups(Map<String, MessageGroup> groups) {
+        YamlConfiguration config = new YamlConfiguration();
+        config.createSection("groups");
+
+        for (MessageGroup group : groups.values()) {
+            String path = "groups." + group.getId();
+
+            config.set(path + ".name", group.getName());
+            config.set(path + ".frequency", group.getFrequency());
+            config.set(path + ".prefix", group.getPrefix());
+            config.set(path + ".suffix", group.getSuffix());
+            config.set(path + ".permission", group.getPermission().isEmpty() ? null : group.getPermission());
+            config.set(path + ".worlds", group.getWorlds().isEmpty() ? null : group.getWorlds());
+            config.set(path + ".next-message-id", group.getNextMessageId());
+            for (Map.Entry<Integer, Integer> weight : group.getWeights().entrySet()) {
+                config.set(path + ".weights." + weight.getKey(), weight.getValue());
+            }
+
+            // File-backed groups keep their text and IDs in the message file, which is written as edits happen
+            if (group.getBodies().getFileName() != null) {
+                config.set(path + ".messages-file", group.getBodies().getFileName());
+                continue;
+            }
+
+            for (int i = 0; i < group.getMessages().size(); i++) {
+                config.set(path + ".messages." + group.getMessageId(i), group.getMessages().get(i));
+            }
+        }
+
+        return config.saveToString();
+    }
+
+    // groups.yml and its message files are read on an I/O thread after any pending save has been written; the new
+    // registry and config.yml are swapped in on the main thread before onReloaded runs. If the pending save fails the
+    // reload is abandoned, since reading groups.yml back would discard the edits it could not write.
+    public void reloadConfig(Runnable onReloaded, Runnable onFailed) {
+        if (pendingSaveTask != null) {
+            pendingSaveTask.cancel();
+            pendingSaveTask = null;
+        }
+
+        CompletableFuture<Void> save = submitSave();
+        plugin.getIoExecutor().submit(() -> {
+            save.join();
+            long start = System.nanoTime();
+            Map<String, MessageGroup> groups = parseGroups(YamlConfiguration.loadConfiguration(groupsFile), messagesFolder, plugin.getLogger());
+            plugin.getMetrics().record("config.load", start);
+            return groups;
+        }, groups -> {
+            plugin.reloadConfig();
+            settings = plugin.getConfig();
+            groupRegistry = groups;
+            onReloaded.run();
+        }, error -> {
+            plugin.getLogger().severe("Could not reload groups.yml: " + error.getMessage());
+            onFailed.run();
+        });
     }
 
     public Map<String, MessageGroup> getGroups() {
-        Map<String, MessageGroup> groups = new HashMap<>();
+        return groupRegistry;
+    }
+
+    static Map<String, MessageGroup> parseGroups(FileConfiguration groupsConfig) {
+        return parseGroups(groupsConfig, null, Logger.getLogger(ConfigManager.class.getName()));
+    }
+
+    static Map<String, MessageGroup> parseGroups(FileConfiguration groupsConfig, File messagesFolder, Logger logger) {
+        Map<String, MessageGroup> groups = new LinkedHashMap<>();
 
         if (groupsConfig.getConfigurationSection("groups") == null) {
-            return groups;
+            return Collections.emptyMap();
         }
 
         for (String groupId : groupsConfig.getConfigurationSection("groups").getKeys(false)) {
@@ -89,46 +321,166 @@ public class ConfigManager {
             String prefix = groupsConfig.getString(path + ".prefix", "");
             String suffix = groupsConfig.getString(path + ".suffix", "");
 
+            String messagesFile = groupsConfig.getString(path + ".messages-file", "");
+            if (!messagesFile.isEmpty() && messagesFolder != null) {
+                if (!isPlainFileName(messagesFile)) {
+                    logger.severe("Ignoring group " + groupId + ": messages-file must be a file name inside messages/, not " + messagesFile);
+                    continue;
+                }
+                MessageGroup group = parseFileBackedGroup(groupsConfig, path, groupId, new File(messagesFolder, messagesFile), logger);
+                if (group != null) {
+                    groups.put(groupId, group);
+                }
+                continue;
+            }
+
+            // Message keys are stable IDs and their order in the file is the display order
             List<String> messages = new ArrayList<>();
+            List<Integer> messageIds = new ArrayList<>();
+            List<String> messageKeys = new ArrayList<>();
+            int nextMessageId = groupsConfig.getInt(path + ".next-message-id", 0);
             if (groupsConfig.getConfigurationSection(path + ".messages") != null) {
-                for (String messageKey : groupsConfig.getConfigurationSection(path + ".messages").getKeys(false)) {
-                    messages.add(groupsConfig.getString(path + ".messages." + messageKey));
+                messageKeys.addAll(groupsConfig.getConfigurationSection(path + ".messages").getKeys(false));
+                for (String messageKey : messageKeys) {
+                    nextMessageId = Math.max(nextMessageId, parseMessageId(messageKey) + 1);
                 }
             }
 
-            MessageGroup group = new MessageGroup(groupId, name, frequency, prefix, suffix, messages);
+            for (String messageKey : messageKeys) {
+                int messageId = parseMessageId(messageKey);
+                messages.add(groupsConfig.getString(path + ".messages." + messageKey));
+                messageIds.add(messageId >= 0 ? messageId : nextMessageId++);
+            }
+
+            MessageGroup group = new MessageGroup(groupId, name, frequency, prefix, suffix, messages, messageIds, nextMessageId);
+            group.setPermission(groupsConfig.getString(path + ".permission", ""));
+            group.setWorlds(groupsConfig.getStringList(path + ".worlds"));
+            parseWeights(groupsConfig, path, group);
             groups.put(groupId, group);
         }
 
-        return groups;
+        return Collections.unmodifiableMap(groups);
     }
 
-    public MessageGroup getGroup(String groupId) {
-        return getGroups().get(groupId);
+    private static boolean isPlainFileName(String name) {
+        return !name.equals(".") && !name.equals("..") && name.indexOf('/') < 0 && name.indexOf('\\') < 0 && name.indexOf(':') < 0;
     }
 
-    public void saveGroup(MessageGroup group) {
-        String path = "groups." + group.getId();
+    private static MessageGroup parseFileBackedGroup(FileConfiguration groupsConfig, String path, String groupId, File file, Logger logger) {
+        MessageFile messageFile = new MessageFile(file.toPath(), logger);
+        MessageFile.Index index;
+        try {
+            index = messageFile.readIndex();
+        } catch (IOException e) {
+            logger.severe("Could not read messages for group " + groupId + " from " + file.getName() + ": " + e.getMessage());
+            return null;
+        }
+
+        List<Integer> messageIds = new ArrayList<>(index.getMessageIds().length);
+        int nextMessageId = groupsConfig.getInt(path + ".next-message-id", 0);
+        for (int messageId : index.getMessageIds()) {
+            messageIds.add(messageId);
+            nextMessageId = Math.max(nextMessageId, messageId + 1);
+        }
+
+        MessageGroup group = new MessageGroup(groupId, groupsConfig.getString(path + ".name", groupId), groupsConfig.getInt(path + ".frequency", 5),
+            groupsConfig.getString(path + ".prefix", ""), groupsConfig.getString(path + ".suffix", ""),
+            new FileMessageBodies(messageFile, index.getOffsets()), messageIds, nextMessageId);
+        group.setPermission(groupsConfig.getString(path + ".permission", ""));
+        group.setWorlds(groupsConfig.getStringList(path + ".worlds"));
+        parseWeights(groupsConfig, path, group);
+        return group;
+    }
+
+    // Weights for deleted messages are dropped, and anything below 1 counts as 1 so every message stays in the cycle
+    private static void parseWeights(FileConfiguration groupsConfig, String path, MessageGroup group) {
+        if (groupsConfig.getConfigurationSection(path + ".weights") == null) {
+            return;
+        }
 
-        groupsConfig.set(path + ".name", group.getName());
-        groupsConfig.set(path + ".frequency", group.getFrequency());
-        groupsConfig.set(path + ".prefix", group.getPrefix());
-        groupsConfig.set(path + ".suffix", group.getSuffix());
+        for (String messageKey : groupsConfig.getConfigurationSection(path + ".weights").getKeys(false)) {
+            int messageId = parseMessageId(messageKey);
+            if (messageId >= 0 && group.indexOfMessageId(messageId) >= 0) {
+                group.setWeight(messageId, groupsConfig.getInt(path + ".weights." + messageKey, 1));
+            }
+        }
+    }
 
-        groupsConfig.set(path + ".messages", null);
-        for (int i = 0; i < group.getMessages().size(); i++) {
-            groupsConfig.set(path + ".messages." + i, group.getMessages().get(i));
+    private static int parseMessageId(String messageKey) {
+        try {
+            return Math.max(-1, Integer.parseInt(messageKey));
+        } catch (NumberFormatException e) {
+            return -1;
         }
+    }
+
+    public MessageGroup getGroup(String groupId) {
+        return groupRegistry.get(groupId);
+    }
+
+    public void saveGroup(MessageGroup group) {
+        Map<String, MessageGroup> updated = new LinkedHashMap<>(groupRegistry);
+        updated.put(group.getId(), new MessageGroup(group));
+        groupRegistry = Collections.unmodifiableMap(updated);
 
         saveConfig();
     }
 
     public void deleteGroup(String groupId) {
-        groupsConfig.set("groups." + groupId, null);
+        Map<String, MessageGroup> updated = new LinkedHashMap<>(groupRegistry);
+        updated.remove(groupId);
+        groupRegistry = Collections.unmodifiableMap(updated);
+
         saveConfig();
     }
 
     public boolean groupExists(String groupId) {
-        return groupsConfig.contains("groups." + groupId);
+        return groupRegistry.containsKey(groupId);
+    }
+
+    public String getStorageType() {
+        return settings.getString("storage.type", "sqlite").toLowerCase();
+    }
+
+    public int getLazyLoadThreshold() {
+        return settings.getInt("messages.lazy-load-threshold", 0);
+    }
+
+    // Group frequencies and the send rate are counted in this unit: minutes (the default) or seconds
+    public String getTimeUnit() {
+        return settings.getString("scheduler.time-unit", "minutes").equalsIgnoreCase("seconds") ? "seconds" : "minutes";
+    }
+
+    public long getTimeUnitMillis() {
+        return getTimeUnit().equals("seconds") ? 1000L : 60L * 1000L;
+    }
+
+    public double getSendRate() {
+        double rate = settings.getDouble("scheduler.send-rate", 1.0);
+        return rate > 0 ? rate : 1.0;
+    }
+
+    public int getSendBurst() {
+        return Math.max(1, settings.getInt("scheduler.burst", 1));
+    }
+
+    public int getQueueMaxDepth() {
+        return Math.max(1, settings.getInt("queue.max-depth", 10));
+    }
+
+    public String getQueueOverflowPolicy() {
+        return settings.getString("queue.overflow-policy", "skip").toLowerCase();
+    }
+
+    public boolean isQueueDedupeEnabled() {
+        return settings.getBoolean("queue.dedupe-groups", true);
+    }
+
+    public int getMaintenanceInterval() {
+        return Math.max(1, settings.getInt("database.maintenance-interval", 60));
+    }
+
+    public int getVacuumPagesPerStep() {
+        return Math.max(1, settings.getInt("database.vacuum-pages-per-step", 128));
     }
-}
\ No newline at end of file
+}
@@ -1,38 +1,32 @@
 package com.advancedrotating.messages.database;
 
 import com.advancedrotating.messages.AdvancedRotatingMessagesPlugin;
+import com.advancedrotating.messages.rotation.RotationCycle;
+import com.advancedrotating.messages.storage.MaintenanceReport;
+import com.advancedrotating.messages.storage.PoolChangeSet;
+import com.advancedrotating.messages.storage.QueuedMessage;
+import com.advancedrotating.messages.storage.RotationStorage;
 
 import java.io.File;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
 
-public class DatabaseManager {
+public class DatabaseManager implements RotationStorage {
 
-    private final AdvancedRotatingMessagesPlugin plugin;
-    private Connection connection;
-    private final String dbPath;
+    private static final int WRITE_QUEUE_CAPACITY = 10000;
+    private static final long WRITE_FLUSH_TIMEOUT = 5000;
+    private static final String SAVE_CYCLE_SQL = "INSERT OR REPLACE INTO rotation_cycles "
+        + "(group_id, seed, bound, cursor, weight_hash, late_additions, sent_out_of_order, weights) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
 
-    public DatabaseManager(AdvancedRotatingMessagesPlugin plugin) {
-        this.plugin = plugin;
-        this.dbPath = new File(plugin.getDataFolder(), "messages.db").getAbsolutePath();
-    }
-
-    public void initialize() {
-        try {
-            connect();
-            createTables();
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Failed to initialize database: " + e.getMessage());
-        }
-    }
-
-    private void connect() throws SQLException {
-        connection = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
-    }
-
-    private void createTables() throws SQLException {
-        String createMessagePoolTable = """
+    // Each entry is one schema version; append new migrations, never edit applied ones
+    private static final List<String[]> MIGRATIONS = List.of(
+        new String[] {
+            """
             CREATE TABLE IF NOT EXISTS message_pool (
                 id INTEGER PRIMARY KEY AUTOINCREMENT,
                 group_id TEXT NOT NULL,
@@ -41,9 +35,8 @@ public class DatabaseManager {
                 created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
                 UNIQUE(group_id, message_index)
             )
-        """;
-
-        String createMessageQueueTable = """
+            """,
+            """
             CREATE TABLE IF NOT EXISTS message_queue (
                 id INTEGER PRIMARY KEY AUTOINCREMENT,
                 group_id TEXT NOT NULL,
@@ -52,185 +45,369 @@ public class DatabaseManager {
                 is_sent BOOLEAN DEFAULT FALSE,
                 created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP
             )
-        """;
-
-        try (PreparedStatement stmt1 = connection.prepareStatement(createMessagePoolTable);
-             PreparedStatement stmt2 = connection.prepareStatement(createMessageQueueTable)) {
-            stmt1.execute();
-            stmt2.execute();
+            """
+        },
+        new String[] {
+            "CREATE INDEX IF NOT EXISTS idx_message_pool_group_sent ON message_pool (group_id, is_sent, message_index)",
+            "CREATE INDEX IF NOT EXISTS idx_message_queue_pending ON message_queue (is_sent, scheduled_time, group_id, message_index)"
+        },
+        new String[] {
+            "ALTER TABLE message_pool RENAME COLUMN message_index TO message_id",
+            "ALTER TABLE message_queue RENAME COLUMN message_index TO message_id"
+        },
+        // One row per group instead of one per message; sent flags carry over as out-of-order sends
+        new String[] {
+            """
+            CREATE TABLE IF NOT EXISTS rotation_cycles (
+                group_id TEXT PRIMARY KEY,
+                seed INTEGER NOT NULL,
+                bound INTEGER NOT NULL,
+                cursor INTEGER NOT NULL,
+                weight_hash INTEGER NOT NULL DEFAULT 0,
+                late_additions TEXT NOT NULL DEFAULT '',
+                sent_out_of_order TEXT NOT NULL DEFAULT '',
+                weights TEXT NOT NULL DEFAULT ''
+            )
+            """,
+            """
+            INSERT OR IGNORE INTO rotation_cycles (group_id, seed, bound, cursor, weight_hash, late_additions, sent_out_of_order, weights)
+            SELECT group_id, random(), MAX(message_id) + 1, -1, 0, '',
+                   COALESCE(GROUP_CONCAT(CASE WHEN is_sent THEN message_id END, ','), ''), ''
+            FROM message_pool GROUP BY group_id
+            """,
+            "DROP TABLE message_pool"
+        },
+        // Queue rows are now replaced wholesale and never marked sent, so older sent rows would otherwise stay forever
+        new String[] {
+            "DELETE FROM message_queue WHERE is_sent = TRUE"
         }
+    );
+
+    private final Logger logger;
+    private Connection connection;
+    private final String dbPath;
+    private final Object connectionLock = new Object();
+    private WriteBehindQueue writeQueue;
+    private final AtomicBoolean maintenanceRunning = new AtomicBoolean(false);
+    private volatile MaintenanceReport lastMaintenanceReport;
+
+    public DatabaseManager(AdvancedRotatingMessagesPlugin plugin) {
+        this(plugin.getLogger(), new File(plugin.getDataFolder(), "messages.db"));
     }
 
-    public void initializeGroupPool(String groupId, int messageCount) {
-        try {
-            clearGroupPool(groupId);
+    public DatabaseManager(Logger logger, File databaseFile) {
+        this.logger = logger;
+        this.dbPath = databaseFile.getAbsolutePath();
+    }
 
-            String sql = "INSERT OR IGNORE INTO message_pool (group_id, message_index, is_sent) VALUES (?, ?, ?)";
-            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-                for (int i = 0; i < messageCount; i++) {
-                    stmt.setString(1, groupId);
-                    stmt.setInt(2, i);
-                    stmt.setBoolean(3, false);
-                    stmt.addBatch();
-                }
-                stmt.executeBatch();
-            }
+    @Override
+    public void initialize() {
+        try {
+            connect();
+            migrateSchema();
+            enableIncrementalVacuum();
+            writeQueue = new WriteBehindQueue(logger, connection, connectionLock, WRITE_QUEUE_CAPACITY);
+            writeQueue.start();
         } catch (SQLException e) {
-            plugin.getLogger().severe("Failed to initialize group pool for " + groupId + ": " + e.getMessage());
+            logger.severe("Failed to initialize database: " + e.getMessage());
         }
     }
 
-    public List<Integer> getAvailableMessages(String groupId) {
-        List<Integer> availableMessages = new ArrayList<>();
-        String sql = "SELECT message_index FROM message_pool WHERE group_id = ? AND is_sent = FALSE";
+    private void connect() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("PRAGMA auto_vacuum = INCREMENTAL");
+            stmt.execute("PRAGMA journal_mode = WAL");
+            stmt.execute("PRAGMA synchronous = NORMAL");
+            stmt.execute("PRAGMA busy_timeout = 5000");
+            stmt.execute("PRAGMA temp_store = MEMORY");
+        }
+    }
 
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setString(1, groupId);
-            ResultSet rs = stmt.executeQuery();
+    private void migrateSchema() throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS schema_version (version INTEGER PRIMARY KEY, applied_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP)");
+        }
 
-            while (rs.next()) {
-                availableMessages.add(rs.getInt("message_index"));
+        int currentVersion = 0;
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+            if (rs.next()) {
+                currentVersion = rs.getInt(1);
             }
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Failed to get available messages for " + groupId + ": " + e.getMessage());
         }
 
-        return availableMessages;
+        for (int version = currentVersion + 1; version <= MIGRATIONS.size(); version++) {
+            connection.setAutoCommit(false);
+            try (Statement stmt = connection.createStatement();
+                 PreparedStatement record = connection.prepareStatement("INSERT INTO schema_version (version) VALUES (?)")) {
+                for (String sql : MIGRATIONS.get(version - 1)) {
+                    stmt.execute(sql);
+                }
+                record.setInt(1, version);
+                record.executeUpdate();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw new SQLException("Migration to schema version " + version + " failed: " + e.getMessage(), e);
+            } finally {
+                connection.setAutoCommit(true);
+            }
+
+            logger.info("Upgraded database schema to version " + version);
+        }
     }
 
-    public void markMessageAsSent(String groupId, int messageIndex) {
-        String sql = "UPDATE message_pool SET is_sent = TRUE WHERE group_id = ? AND message_index = ?";
+    // auto_vacuum only applies to databases created after it is set; older files need one full VACUUM to switch
+    private void enableIncrementalVacuum() throws SQLException {
+        if (queryPragma("auto_vacuum") == 2) {
+            return;
+        }
 
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setString(1, groupId);
-            stmt.setInt(2, messageIndex);
-            stmt.executeUpdate();
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Failed to mark message as sent for " + groupId + ": " + e.getMessage());
+        logger.info("Converting messages.db to incremental auto-vacuum, this only happens once...");
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("PRAGMA auto_vacuum = INCREMENTAL");
+            stmt.execute("VACUUM");
         }
     }
 
-    public void resetGroupPool(String groupId) {
-        String sql = "UPDATE message_pool SET is_sent = FALSE WHERE group_id = ?";
-
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setString(1, groupId);
-            stmt.executeUpdate();
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Failed to reset group pool for " + groupId + ": " + e.getMessage());
+    private long queryPragma(String pragma) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA " + pragma)) {
+            return rs.next() ? rs.getLong(1) : 0;
         }
     }
 
-    public void clearGroupPool(String groupId) {
-        String sql = "DELETE FROM message_pool WHERE group_id = ?";
+    // Submitted as one write so the whole change set commits in a single transaction
+    @Override
+    public void applyPoolChanges(PoolChangeSet changes) {
+        writeQueue.submit(null, connection -> {
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM rotation_cycles WHERE group_id = ?");
+                 PreparedStatement save = connection.prepareStatement(SAVE_CYCLE_SQL)) {
+                for (String groupId : changes.getRemovedGroups()) {
+                    delete.setString(1, groupId);
+                    delete.addBatch();
+                }
+                delete.executeBatch();
 
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setString(1, groupId);
-            stmt.executeUpdate();
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Failed to clear group pool for " + groupId + ": " + e.getMessage());
-        }
+                for (Map.Entry<String, RotationCycle> entry : changes.getChangedCycles().entrySet()) {
+                    bindCycle(save, entry.getKey(), entry.getValue());
+                    save.addBatch();
+                }
+                save.executeBatch();
+            } catch (SQLException e) {
+                logger.severe("Failed to apply rotation cycle changes: " + e.getMessage());
+            }
+        });
     }
 
-    public void addMessageToQueue(String groupId, int messageIndex, long scheduledTime) {
-        String sql = "INSERT INTO message_queue (group_id, message_index, scheduled_time) VALUES (?, ?, ?)";
+    @Override
+    public Map<String, RotationCycle> loadRotationCycles() {
+        Map<String, RotationCycle> cycles = new HashMap<>();
+        String sql = "SELECT * FROM rotation_cycles";
 
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setString(1, groupId);
-            stmt.setInt(2, messageIndex);
-            stmt.setTimestamp(3, new Timestamp(scheduledTime));
-            stmt.executeUpdate();
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Failed to add message to queue: " + e.getMessage());
+        synchronized (connectionLock) {
+            writeQueue.flushPendingLocked();
+
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                ResultSet rs = stmt.executeQuery();
+
+                while (rs.next()) {
+                    cycles.put(rs.getString("group_id"), new RotationCycle(
+                        rs.getLong("seed"),
+                        rs.getInt("bound"),
+                        rs.getInt("cursor"),
+                        rs.getLong("weight_hash"),
+                        RotationCycle.parseIds(rs.getString("late_additions")),
+                        RotationCycle.parseIds(rs.getString("sent_out_of_order")),
+                        RotationCycle.parseWeights(rs.getString("weights"))
+                    ));
+                }
+            } catch (SQLException | IllegalArgumentException e) {
+                logger.severe("Failed to load rotation cycles: " + e.getMessage());
+            }
         }
+
+        return cycles;
+    }
+
+    // Each save replaces the group's whole row, so only the latest pending save per group needs to run
+    @Override
+    public void saveRotationCycle(String groupId, RotationCycle cycle) {
+        writeQueue.submit("cycle:" + groupId, connection -> {
+            try (PreparedStatement stmt = connection.prepareStatement(SAVE_CYCLE_SQL)) {
+                bindCycle(stmt, groupId, cycle);
+                stmt.executeUpdate();
+            } catch (SQLException e) {
+                logger.severe("Failed to save rotation cycle for " + groupId + ": " + e.getMessage());
+            }
+        });
     }
 
-    public List<QueuedMessage> getQueuedMessages(long currentTime) {
+    @Override
+    public void deleteRotationCycle(String groupId) {
+        String sql = "DELETE FROM rotation_cycles WHERE group_id = ?";
+
+        writeQueue.submit("cycle:" + groupId, connection -> {
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.setString(1, groupId);
+                stmt.executeUpdate();
+            } catch (SQLException e) {
+                logger.severe("Failed to delete rotation cycle for " + groupId + ": " + e.getMessage());
+            }
+        });
+    }
+
+    private static void bindCycle(PreparedStatement stmt, String groupId, RotationCycle cycle) throws SQLException {
+        stmt.setString(1, groupId);
+        stmt.setLong(2, cycle.getSeed());
+        stmt.setInt(3, cycle.getBound());
+        stmt.setInt(4, cycle.getCursor());
+        stmt.setLong(5, cycle.getWeightHash());
+        stmt.setString(6, RotationCycle.joinIds(cycle.getLateAdditions()));
+        stmt.setString(7, RotationCycle.joinIds(cycle.getSentOutOfOrder()));
+        stmt.setString(8, RotationCycle.joinWeights(cycle.getWeights()));
+    }
+
+    @Override
+    public List<QueuedMessage> loadQueue() {
         List<QueuedMessage> queuedMessages = new ArrayList<>();
-        String sql = "SELECT * FROM message_queue WHERE scheduled_time <= ? AND is_sent = FALSE ORDER BY scheduled_time ASC";
-
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setTimestamp(1, new Timestamp(currentTime));
-            ResultSet rs = stmt.executeQuery();
-
-            while (rs.next()) {
-                QueuedMessage queuedMessage = new QueuedMessage(
-                    rs.getInt("id"),
-                    rs.getString("group_id"),
-                    rs.getInt("message_index"),
-                    rs.getTimestamp("scheduled_time").getTime()
-                );
-                queuedMessages.add(queuedMessage);
+        String sql = "SELECT id, group_id, message_id, scheduled_time FROM message_queue WHERE is_sent = FALSE ORDER BY scheduled_time ASC, id ASC";
+
+        synchronized (connectionLock) {
+            writeQueue.flushPendingLocked();
+
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                ResultSet rs = stmt.executeQuery();
+
+                while (rs.next()) {
+                    QueuedMessage queuedMessage = new QueuedMessage(
+                        rs.getInt("id"),
+                        rs.getString("group_id"),
+                        rs.getInt("message_id"),
+                        rs.getTimestamp("scheduled_time").getTime()
+                    );
+                    queuedMessages.add(queuedMessage);
+                }
+            } catch (SQLException e) {
+                logger.severe("Failed to load queued messages: " + e.getMessage());
             }
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Failed to get queued messages: " + e.getMessage());
         }
 
         return queuedMessages;
     }
 
-    public void markQueuedMessageAsSent(int queueId) {
-        String sql = "UPDATE message_queue SET is_sent = TRUE WHERE id = ?";
+    // Pending rows are replaced wholesale; only the latest snapshot in a write batch is applied
+    @Override
+    public void saveQueue(List<QueuedMessage> queue) {
+        List<QueuedMessage> snapshot = new ArrayList<>(queue);
+        String insertSql = "INSERT INTO message_queue (group_id, message_id, scheduled_time) VALUES (?, ?, ?)";
+
+        writeQueue.submit("queue", connection -> {
+            try (Statement delete = connection.createStatement();
+                 PreparedStatement insert = connection.prepareStatement(insertSql)) {
+                delete.executeUpdate("DELETE FROM message_queue WHERE is_sent = FALSE");
+                for (QueuedMessage queuedMessage : snapshot) {
+                    insert.setString(1, queuedMessage.getGroupId());
+                    insert.setInt(2, queuedMessage.getMessageId());
+                    insert.setTimestamp(3, new Timestamp(queuedMessage.getScheduledTime()));
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            } catch (SQLException e) {
+                logger.severe("Failed to save message queue: " + e.getMessage());
+            }
+        });
+    }
 
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setInt(1, queueId);
-            stmt.executeUpdate();
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Failed to mark queued message as sent: " + e.getMessage());
+    // Reclaims free pages in small locked steps; call off the main thread
+    @Override
+    public MaintenanceReport runMaintenance(int pagesPerStep) {
+        if (writeQueue == null || !maintenanceRunning.compareAndSet(false, true)) {
+            return null;
         }
-    }
 
-    public void addNewMessageToPool(String groupId, int messageIndex) {
-        String sql = "INSERT OR IGNORE INTO message_pool (group_id, message_index, is_sent) VALUES (?, ?, ?)";
+        try {
+            long startTime = System.currentTimeMillis();
+            long sizeBefore;
+            synchronized (connectionLock) {
+                sizeBefore = getDatabaseSize();
+            }
+
+            long freePages;
+            do {
+                synchronized (connectionLock) {
+                    freePages = queryPragma("freelist_count");
+                    if (freePages > 0) {
+                        try (Statement stmt = connection.createStatement();
+                             ResultSet rs = stmt.executeQuery("PRAGMA incremental_vacuum(" + pagesPerStep + ")")) {
+                            // The pragma frees pages as its result rows are stepped through
+                            while (rs.next()) {
+                            }
+                        }
+                    }
+                }
+            } while (freePages > pagesPerStep);
 
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setString(1, groupId);
-            stmt.setInt(2, messageIndex);
-            stmt.setBoolean(3, false);
-            stmt.executeUpdate();
+            long sizeAfter;
+            synchronized (connectionLock) {
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute("PRAGMA wal_checkpoint(TRUNCATE)");
+                }
+                sizeAfter = getDatabaseSize();
+            }
+
+            MaintenanceReport report = new MaintenanceReport(startTime, Math.max(0, sizeBefore - sizeAfter),
+                sizeAfter, System.currentTimeMillis() - startTime);
+            lastMaintenanceReport = report;
+            return report;
         } catch (SQLException e) {
-            plugin.getLogger().severe("Failed to add new message to pool: " + e.getMessage());
+            logger.severe("Failed to run database maintenance: " + e.getMessage());
+            return null;
+        } finally {
+            maintenanceRunning.set(false);
         }
     }
 
-    public void removeMessageFromPool(String groupId, int messageIndex) {
-        String sql = "DELETE FROM message_pool WHERE group_id = ? AND message_index = ?";
+    private long getDatabaseSize() throws SQLException {
+        return queryPragma("page_count") * queryPragma("page_size");
+    }
 
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-            stmt.setString(1, groupId);
-            stmt.setInt(2, messageIndex);
-            stmt.executeUpdate();
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Failed to remove message from pool: " + e.getMessage());
-        }
+    @Override
+    public MaintenanceReport getLastMaintenanceReport() {
+        return lastMaintenanceReport;
     }
 
-    public void close() {
-        try {
-            if (connection != null && !connection.isClosed()) {
-                connection.close();
-            }
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Failed to close database connection: " + e.getMessage());
-        }
+    @Override
+    public boolean supportsMaintenance() {
+        return true;
+    }
+
+    @Override
+    public boolean isMaintenanceRunning() {
+        return maintenanceRunning.get();
     }
 
-    public static class QueuedMessage {
-        private final int id;
-        private final String groupId;
-        private final int messageIndex;
-        private final long scheduledTime;
+    @Override
+    public int getPendingWriteCount() {
+        return writeQueue == null ? 0 : writeQueue.getPendingCount();
+    }
 
-        public QueuedMessage(int id, String groupId, int messageIndex, long scheduledTime) {
-            this.id = id;
-            this.groupId = groupId;
-            this.messageIndex = messageIndex;
-            this.scheduledTime = scheduledTime;
+    @Override
+    public void close() {
+        if (writeQueue != null) {
+            writeQueue.shutdown(WRITE_FLUSH_TIMEOUT);
         }
 
-        public int getId() { return id; }
-        public String getGroupId() { return groupId; }
-        public int getMessageIndex() { return messageIndex; }
-        public long getScheduledTime() { return scheduledTime; }
+        synchronized (connectionLock) {
+            try {
+                if (connection != null && !connection.isClosed()) {
+                    connection.close();
+                }
+            } catch (SQLException e) {
+                logger.severe("Failed to close database connection: " + e.getMessage());
+            }
+        }
     }
-}
\ No newline at end of file
+}
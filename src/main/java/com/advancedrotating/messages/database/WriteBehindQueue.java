@@ -0,0 +1,212 @@
+package com.advancedrotating.messages.database;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+public class WriteBehindQueue {
+
+    @FunctionalInterface
+    public interface Write {
+        void apply(Connection connection) throws SQLException;
+    }
+
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final long OVERFLOW_WARNING_INTERVAL = 60 * 1000;
+
+    private final Logger logger;
+    private final Connection connection;
+    private final Object connectionLock;
+    private final int capacity;
+    private final ArrayDeque<PendingWrite> pending;
+    private final ReentrantLock queueLock;
+    private final Condition notEmpty;
+    private final Thread worker;
+    private volatile boolean running;
+    private long lastOverflowWarning;
+
+    WriteBehindQueue(Logger logger, Connection connection, Object connectionLock, int capacity) {
+        this.logger = logger;
+        this.connection = connection;
+        this.connectionLock = connectionLock;
+        this.capacity = capacity;
+        this.pending = new ArrayDeque<>();
+        this.queueLock = new ReentrantLock();
+        this.notEmpty = queueLock.newCondition();
+        // A platform thread: the worker holds the connection monitor across JDBC's native calls, which would pin a
+        // virtual thread's carrier for the whole write
+        this.worker = new Thread(this::runWorker, "AdvancedRotatingMessages-DatabaseWriter");
+        this.worker.setDaemon(true);
+    }
+
+    void start() {
+        running = true;
+        worker.start();
+    }
+
+    // Writes sharing a non-null key are idempotent, so only the latest one in a batch is applied
+    public void submit(String key, Write write) {
+        PendingWrite pendingWrite = new PendingWrite(key, write);
+
+        if (running) {
+            queueLock.lock();
+            try {
+                if (pending.size() < capacity) {
+                    pending.addLast(pendingWrite);
+                    notEmpty.signal();
+                    return;
+                }
+            } finally {
+                queueLock.unlock();
+            }
+            warnOverflow();
+        }
+
+        // Queue full or stopped: apply on the caller thread behind everything already queued
+        synchronized (connectionLock) {
+            List<PendingWrite> batch = drain(Integer.MAX_VALUE);
+            batch.add(pendingWrite);
+            applyBatch(batch);
+        }
+    }
+
+    // Must be called while holding the connection lock, so reads observe every write submitted before them
+    void flushPendingLocked() {
+        List<PendingWrite> batch = drain(Integer.MAX_VALUE);
+        if (!batch.isEmpty()) {
+            applyBatch(batch);
+        }
+    }
+
+    public int getPendingCount() {
+        queueLock.lock();
+        try {
+            return pending.size();
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    void shutdown(long timeoutMillis) {
+        running = false;
+        queueLock.lock();
+        try {
+            notEmpty.signalAll();
+        } finally {
+            queueLock.unlock();
+        }
+
+        try {
+            worker.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Whatever the worker did not get to is written here, after any batch it is still applying
+        synchronized (connectionLock) {
+            int remaining = getPendingCount();
+            if (remaining > 0) {
+                logger.warning("Database writer did not finish within " + timeoutMillis + "ms, writing " + remaining + " pending writes on shutdown");
+                flushPendingLocked();
+            }
+        }
+    }
+
+    private void runWorker() {
+        while (true) {
+            queueLock.lock();
+            try {
+                while (pending.isEmpty() && running) {
+                    notEmpty.await(1, TimeUnit.SECONDS);
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                queueLock.unlock();
+            }
+
+            synchronized (connectionLock) {
+                List<PendingWrite> batch = drain(MAX_BATCH_SIZE);
+                if (!batch.isEmpty()) {
+                    applyBatch(batch);
+                }
+            }
+        }
+    }
+
+    private List<PendingWrite> drain(int maxWrites) {
+        Map<Object, PendingWrite> coalesced = new LinkedHashMap<>();
+
+        queueLock.lock();
+        try {
+            int drained = 0;
+            while (!pending.isEmpty() && drained < maxWrites) {
+                PendingWrite pendingWrite = pending.pollFirst();
+                Object key = pendingWrite.key != null ? pendingWrite.key : pendingWrite;
+                coalesced.remove(key);
+                coalesced.put(key, pendingWrite);
+                drained++;
+            }
+        } finally {
+            queueLock.unlock();
+        }
+
+        return new ArrayList<>(coalesced.values());
+    }
+
+    private void applyBatch(List<PendingWrite> batch) {
+        try {
+            connection.setAutoCommit(false);
+            for (PendingWrite pendingWrite : batch) {
+                try {
+                    pendingWrite.write.apply(connection);
+                } catch (SQLException e) {
+                    logger.severe("Failed to apply database write: " + e.getMessage());
+                }
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            logger.severe("Failed to commit database writes: " + e.getMessage());
+            try {
+                connection.rollback();
+            } catch (SQLException rollbackException) {
+                logger.severe("Failed to roll back database writes: " + rollbackException.getMessage());
+            }
+        } finally {
+            try {
+                connection.setAutoCommit(true);
+            } catch (SQLException e) {
+                logger.severe("Failed to restore auto-commit: " + e.getMessage());
+            }
+        }
+    }
+
+    private void warnOverflow() {
+        long now = System.currentTimeMillis();
+        if (now - lastOverflowWarning >= OVERFLOW_WARNING_INTERVAL) {
+            lastOverflowWarning = now;
+            logger.warning("Database write queue is full (" + capacity + " pending), writing on the calling thread");
+        }
+    }
+
+    private static final class PendingWrite {
+        private final String key;
+        private final Write write;
+
+        private PendingWrite(String key, Write write) {
+            this.key = key;
+            this.write = write;
+        }
+    }
+}
@@ -2,23 +2,29 @@ package com.advancedrotating.messages.managers;
 
 import com.advancedrotating.messages.AdvancedRotatingMessagesPlugin;
 import com.advancedrotating.messages.config.ConfigManager;
-import com.advancedrotating.messages.database.DatabaseManager;
 import com.advancedrotating.messages.models.MessageGroup;
+import com.advancedrotating.messages.rotation.RotationManager;
+import com.advancedrotating.messages.storage.PoolChangeSet;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 public class GroupManager {
 
     private final AdvancedRotatingMessagesPlugin plugin;
     private final ConfigManager configManager;
-    private final DatabaseManager databaseManager;
+    private final RotationManager rotationManager;
+    private final ArrayDeque<Runnable> pendingEdits = new ArrayDeque<>();
+    private boolean editRunning;
 
-    public GroupManager(AdvancedRotatingMessagesPlugin plugin, ConfigManager configManager, DatabaseManager databaseManager) {
+    public GroupManager(AdvancedRotatingMessagesPlugin plugin, ConfigManager configManager, RotationManager rotationManager) {
         this.plugin = plugin;
         this.configManager = configManager;
-        this.databaseManager = databaseManager;
+        this.rotationManager = rotationManager;
     }
 
     public boolean createGroup(String groupId, String name, int frequency, String prefix, String suffix) {
@@ -28,91 +34,212 @@ public class GroupManager {
 
         MessageGroup group = new MessageGroup(groupId, name, frequency, prefix, suffix, new ArrayList<>());
         configManager.saveGroup(group);
-        databaseManager.initializeGroupPool(groupId, 0);
+        rotationManager.initializeGroup(group);
+        notifyGroupChanged(groupId);
 
         return true;
     }
 
-    public boolean updateGroup(String groupId, String name, int frequency, String prefix, String suffix) {
-        MessageGroup group = configManager.getGroup(groupId);
-        if (group == null) {
-            return false;
-        }
+    public void updateGroup(String groupId, String name, int frequency, String prefix, String suffix, Consumer<Boolean> onDone) {
+        edit(groupId, false, group -> {
+            group.setName(name);
+            group.setFrequency(frequency);
+            group.setPrefix(prefix);
+            group.setSuffix(suffix);
+            return true;
+        }, group -> {
+            invalidateRenderedMessages(groupId);
+            notifyGroupChanged(groupId);
+        }, onDone);
+    }
 
-        group.setName(name);
-        group.setFrequency(frequency);
-        group.setPrefix(prefix);
-        group.setSuffix(suffix);
+    // Queued behind edits in flight, so a message file record is never written for a group that was deleted meanwhile
+    public void deleteGroup(String groupId, Consumer<Boolean> onDone) {
+        enqueueEdit(() -> {
+            if (!configManager.groupExists(groupId)) {
+                finishEdit(onDone, false);
+                return;
+            }
 
-        configManager.saveGroup(group);
-        return true;
+            configManager.deleteGroup(groupId);
+            rotationManager.clearGroup(groupId);
+            if (plugin.getMessageSearch() != null) {
+                plugin.getMessageSearch().onGroupRemoved(groupId);
+            }
+            invalidateRenderedMessages(groupId);
+            notifyGroupChanged(groupId);
+            finishEdit(onDone, true);
+        });
     }
 
-    public boolean deleteGroup(String groupId) {
-        if (!configManager.groupExists(groupId)) {
-            return false;
-        }
-
-        configManager.deleteGroup(groupId);
-        databaseManager.clearGroupPool(groupId);
-        return true;
+    // Like deletions, reloads wait for edits in flight, and later edits start from the reloaded groups
+    public void reloadGroups(Runnable onReloaded, Runnable onFailed) {
+        enqueueEdit(() -> configManager.reloadConfig(
+            () -> finishEdit(reloaded -> onReloaded.run(), true),
+            () -> finishEdit(reloaded -> onFailed.run(), false)));
     }
 
     public MessageGroup getGroup(String groupId) {
         return configManager.getGroup(groupId);
     }
 
-    public Map<String, MessageGroup> getAllGroups() {
-        return configManager.getGroups();
+    private void notifyGroupChanged(String groupId) {
+        if (plugin.getMessageScheduler() != null) {
+            plugin.getMessageScheduler().onGroupChanged(groupId);
+        }
     }
 
-    public boolean addMessage(String groupId, String message) {
-        MessageGroup group = configManager.getGroup(groupId);
-        if (group == null) {
-            return false;
+    private void invalidateRenderedMessages(String groupId) {
+        if (plugin.getMessageScheduler() != null) {
+            plugin.getMessageScheduler().invalidateRenderedMessages(groupId);
         }
+    }
 
-        int newMessageIndex = group.getMessages().size();
-        group.addMessage(message);
-        configManager.saveGroup(group);
+    private void indexMessage(String groupId, int messageId, String message) {
+        if (plugin.getMessageSearch() != null) {
+            plugin.getMessageSearch().onMessageChanged(groupId, messageId, message);
+        }
+    }
 
-        databaseManager.addNewMessageToPool(groupId, newMessageIndex);
-        return true;
+    // Registry groups are shared snapshots, so edits work on a private copy that saveGroup publishes. Edits, group
+    // deletions and reloads run one at a time, so the snapshot an edit starts from stays current until it is published;
+    // for file-backed groups the message file is written on an I/O thread and the copy is published once that has finished.
+    private void edit(String groupId, boolean writesFile, GroupEdit edit, Consumer<MessageGroup> onPublished, Consumer<Boolean> onDone) {
+        enqueueEdit(() -> {
+            MessageGroup base = configManager.getGroup(groupId);
+            if (base == null) {
+                finishEdit(onDone, false);
+                return;
+            }
+
+            MessageGroup group = new MessageGroup(base);
+            if (!writesFile || base.getBodies().getFileName() == null) {
+                boolean applied;
+                try {
+                    applied = edit.apply(group);
+                } catch (IOException e) {
+                    plugin.getLogger().severe("Could not edit group " + groupId + ": " + e.getMessage());
+                    applied = false;
+                }
+                publishEdit(applied ? group : null, onPublished, onDone);
+                return;
+            }
+
+            plugin.getIoExecutor().submit(() -> edit.apply(group) ? group : null,
+                edited -> publishEdit(edited, onPublished, onDone),
+                error -> {
+                    plugin.getLogger().severe("Could not edit messages of group " + groupId + ": " + error.getMessage());
+                    finishEdit(onDone, false);
+                });
+        });
     }
 
-    public boolean updateMessage(String groupId, int messageIndex, String newMessage) {
-        MessageGroup group = configManager.getGroup(groupId);
-        if (group == null || messageIndex < 0 || messageIndex >= group.getMessages().size()) {
-            return false;
+    private void enqueueEdit(Runnable edit) {
+        pendingEdits.add(edit);
+        if (!editRunning) {
+            runNextEdit();
         }
-
-        group.updateMessage(messageIndex, newMessage);
-        configManager.saveGroup(group);
-        return true;
     }
 
-    public boolean deleteMessage(String groupId, int messageIndex) {
-        MessageGroup group = configManager.getGroup(groupId);
-        if (group == null || messageIndex < 0 || messageIndex >= group.getMessages().size()) {
-            return false;
+    private void publishEdit(MessageGroup edited, Consumer<MessageGroup> onPublished, Consumer<Boolean> onDone) {
+        if (edited == null) {
+            finishEdit(onDone, false);
+            return;
         }
 
-        group.removeMessage(messageIndex);
+        configManager.saveGroup(edited);
+        onPublished.accept(edited);
+        finishEdit(onDone, true);
+    }
 
-        for (int i = messageIndex; i < group.getMessages().size(); i++) {
-            databaseManager.removeMessageFromPool(groupId, i + 1);
-            databaseManager.addNewMessageToPool(groupId, i);
+    private void finishEdit(Consumer<Boolean> onDone, boolean applied) {
+        onDone.accept(applied);
+        editRunning = false;
+        runNextEdit();
+    }
+
+    private void runNextEdit() {
+        Runnable next = pendingEdits.poll();
+        if (next != null) {
+            editRunning = true;
+            next.run();
         }
-        databaseManager.removeMessageFromPool(groupId, group.getMessages().size());
+    }
 
-        configManager.saveGroup(group);
-        return true;
+    // Applies an edit to a private copy; returns false when the edit does not apply, e.g. the index is out of range
+    @FunctionalInterface
+    private interface GroupEdit {
+        boolean apply(MessageGroup group) throws IOException;
+    }
+
+    public Map<String, MessageGroup> getAllGroups() {
+        return configManager.getGroups();
+    }
+
+    public void addMessage(String groupId, String message, Consumer<Boolean> onDone) {
+        int[] messageId = new int[1];
+        edit(groupId, true, group -> {
+            messageId[0] = group.addMessage(message);
+            return true;
+        }, group -> {
+            indexMessage(groupId, messageId[0], message);
+            rotationManager.addMessage(groupId, messageId[0]);
+            if (group.getMessages().size() == 1) {
+                notifyGroupChanged(groupId);
+            }
+        }, onDone);
+    }
+
+    public void updateMessage(String groupId, int messageIndex, String newMessage, Consumer<Boolean> onDone) {
+        edit(groupId, true, group -> {
+            if (messageIndex < 0 || messageIndex >= group.getMessages().size()) {
+                return false;
+            }
+            group.updateMessage(messageIndex, newMessage);
+            return true;
+        }, group -> {
+            indexMessage(groupId, group.getMessageId(messageIndex), newMessage);
+            invalidateRenderedMessages(groupId);
+        }, onDone);
+    }
+
+    public void deleteMessage(String groupId, int messageIndex, Consumer<Boolean> onDone) {
+        int[] messageId = new int[1];
+        edit(groupId, true, group -> {
+            if (messageIndex < 0 || messageIndex >= group.getMessages().size()) {
+                return false;
+            }
+            messageId[0] = group.getMessageId(messageIndex);
+            group.removeMessage(messageIndex);
+            return true;
+        }, group -> {
+            rotationManager.removeMessage(groupId, messageId[0]);
+            if (plugin.getMessageSearch() != null) {
+                plugin.getMessageSearch().onMessageRemoved(groupId, messageId[0]);
+            }
+            invalidateRenderedMessages(groupId);
+        }, onDone);
+    }
+
+    public void setMessageWeight(String groupId, int messageIndex, int weight, Consumer<Boolean> onDone) {
+        int[] messageId = new int[1];
+        edit(groupId, false, group -> {
+            if (messageIndex < 0 || messageIndex >= group.getMessages().size() || weight < 1) {
+                return false;
+            }
+            messageId[0] = group.getMessageId(messageIndex);
+            group.setWeight(messageId[0], weight);
+            return true;
+        }, group -> rotationManager.setWeight(groupId, messageId[0], weight), onDone);
     }
 
     public void initializeAllGroups() {
-        Map<String, MessageGroup> groups = getAllGroups();
-        for (MessageGroup group : groups.values()) {
-            databaseManager.initializeGroupPool(group.getId(), group.getMessages().size());
+        PoolChangeSet changes = rotationManager.reconcile(getAllGroups().values());
+        for (String groupId : changes.getRestartedCycles()) {
+            plugin.getLogger().warning("Message weights of group " + groupId + " changed while the server was stopped, starting a new rotation cycle");
+        }
+        if (!changes.isEmpty()) {
+            plugin.getLogger().info("Synchronized rotation state with groups.yml (" + changes.size() + " changes)");
         }
     }
 
@@ -0,0 +1,108 @@
+package com.advancedrotating.messages.metrics;
+
+import com.advancedrotating.messages.rotation.RotationCycle;
+import com.advancedrotating.messages.storage.MaintenanceReport;
+import com.advancedrotating.messages.storage.PoolChangeSet;
+import com.advancedrotating.messages.storage.QueuedMessage;
+import com.advancedrotating.messages.storage.RotationStorage;
+
+import java.util.List;
+import java.util.Map;
+
+// Times every call into the configured backend under "storage.<operation>"
+public class InstrumentedRotationStorage implements RotationStorage {
+
+    private final RotationStorage delegate;
+    private final PluginMetrics metrics;
+
+    public InstrumentedRotationStorage(RotationStorage delegate, PluginMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void initialize() {
+        long start = System.nanoTime();
+        delegate.initialize();
+        metrics.record("storage.initialize", start);
+    }
+
+    @Override
+    public void close() {
+        long start = System.nanoTime();
+        delegate.close();
+        metrics.record("storage.close", start);
+    }
+
+    @Override
+    public Map<String, RotationCycle> loadRotationCycles() {
+        long start = System.nanoTime();
+        Map<String, RotationCycle> cycles = delegate.loadRotationCycles();
+        metrics.record("storage.loadRotationCycles", start);
+        return cycles;
+    }
+
+    @Override
+    public void saveRotationCycle(String groupId, RotationCycle cycle) {
+        long start = System.nanoTime();
+        delegate.saveRotationCycle(groupId, cycle);
+        metrics.record("storage.saveRotationCycle", start);
+    }
+
+    @Override
+    public void deleteRotationCycle(String groupId) {
+        long start = System.nanoTime();
+        delegate.deleteRotationCycle(groupId);
+        metrics.record("storage.deleteRotationCycle", start);
+    }
+
+    @Override
+    public void applyPoolChanges(PoolChangeSet changes) {
+        long start = System.nanoTime();
+        delegate.applyPoolChanges(changes);
+        metrics.record("storage.applyPoolChanges", start);
+    }
+
+    @Override
+    public List<QueuedMessage> loadQueue() {
+        long start = System.nanoTime();
+        List<QueuedMessage> queue = delegate.loadQueue();
+        metrics.record("storage.loadQueue", start);
+        return queue;
+    }
+
+    @Override
+    public void saveQueue(List<QueuedMessage> queue) {
+        long start = System.nanoTime();
+        delegate.saveQueue(queue);
+        metrics.record("storage.saveQueue", start);
+    }
+
+    @Override
+    public int getPendingWriteCount() {
+        return delegate.getPendingWriteCount();
+    }
+
+    @Override
+    public MaintenanceReport runMaintenance(int pagesPerStep) {
+        long start = System.nanoTime();
+        MaintenanceReport report = delegate.runMaintenance(pagesPerStep);
+        metrics.record("storage.runMaintenance", start);
+        return report;
+    }
+
+    @Override
+    public MaintenanceReport getLastMaintenanceReport() {
+        return delegate.getLastMaintenanceReport();
+    }
+
+    @Override
+    public boolean isMaintenanceRunning() {
+        return delegate.isMaintenanceRunning();
+    }
+
+    @Override
+    public boolean supportsMaintenance() {
+        return delegate.supportsMaintenance();
+    }
+}
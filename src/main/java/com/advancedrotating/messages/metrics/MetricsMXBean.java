@@ -0,0 +1,15 @@
+package com.advancedrotating.messages.metrics;
+
+import java.util.List;
+import java.util.Map;
+
+public interface MetricsMXBean {
+
+    List<TimerSnapshot> getTimers();
+
+    Map<String, Long> getCounters();
+
+    Map<String, Long> getGauges();
+
+    void reset();
+}
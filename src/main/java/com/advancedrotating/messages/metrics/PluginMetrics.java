@@ -0,0 +1,105 @@
+package com.advancedrotating.messages.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Named timers, counters and gauges shared by the scheduler, storage and config code; also exported over JMX
+public class PluginMetrics implements MetricsMXBean {
+
+    private static final String OBJECT_NAME = "com.advancedrotating.messages:type=Metrics";
+
+    private final Logger logger;
+    private final Map<String, LatencyHistogram> timers = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private ObjectName registeredName;
+
+    public PluginMetrics(Logger logger) {
+        this.logger = logger;
+    }
+
+    // Usage: long start = System.nanoTime(); ...; metrics.record("name", start);
+    public void record(String timer, long startNanos) {
+        timers.computeIfAbsent(timer, name -> new LatencyHistogram()).record(System.nanoTime() - startNanos);
+    }
+
+    public void increment(String counter) {
+        counters.computeIfAbsent(counter, name -> new LongAdder()).increment();
+    }
+
+    public void add(String counter, long amount) {
+        counters.computeIfAbsent(counter, name -> new LongAdder()).add(amount);
+    }
+
+    public void registerGauge(String gauge, LongSupplier supplier) {
+        gauges.put(gauge, supplier);
+    }
+
+    @Override
+    public List<TimerSnapshot> getTimers() {
+        List<TimerSnapshot> snapshots = new ArrayList<>();
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(timers).entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            snapshots.add(new TimerSnapshot(entry.getKey(), histogram.getCount(), histogram.getMean(),
+                histogram.getPercentile(50), histogram.getPercentile(99), histogram.getMax()));
+        }
+        return snapshots;
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        counters.forEach((name, adder) -> values.put(name, adder.sum()));
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        gauges.forEach((name, supplier) -> values.put(name, supplier.getAsLong()));
+        return values;
+    }
+
+    @Override
+    public void reset() {
+        timers.values().forEach(LatencyHistogram::reset);
+        counters.values().forEach(LongAdder::reset);
+    }
+
+    public void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            logger.warning("Could not register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    public void unregisterMBean() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException e) {
+            logger.warning("Could not unregister metrics MBean: " + e.getMessage());
+        }
+        registeredName = null;
+    }
+}
@@ -0,0 +1,29 @@
+package com.advancedrotating.messages.metrics;
+
+import java.beans.ConstructorProperties;
+
+public class TimerSnapshot {
+    private final String name;
+    private final long count;
+    private final long meanNanos;
+    private final long p50Nanos;
+    private final long p99Nanos;
+    private final long maxNanos;
+
+    @ConstructorProperties({"name", "count", "meanNanos", "p50Nanos", "p99Nanos", "maxNanos"})
+    public TimerSnapshot(String name, long count, long meanNanos, long p50Nanos, long p99Nanos, long maxNanos) {
+        this.name = name;
+        this.count = count;
+        this.meanNanos = meanNanos;
+        this.p50Nanos = p50Nanos;
+        this.p99Nanos = p99Nanos;
+        this.maxNanos = maxNanos;
+    }
+
+    public String getName() { return name; }
+    public long getCount() { return count; }
+    public long getMeanNanos() { return meanNanos; }
+    public long getP50Nanos() { return p50Nanos; }
+    public long getP99Nanos() { return p99Nanos; }
+    public long getMaxNanos() { return maxNanos; }
+}
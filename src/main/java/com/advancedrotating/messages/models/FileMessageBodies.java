@@ -0,0 +1,72 @@
+package com.advancedrotating.messages.models;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// Keeps only record offsets in memory; the text is read from the group's message file when a message is used
+public class FileMessageBodies implements MessageBodies {
+
+    private final MessageFile file;
+    private long[] offsets;
+    private int size;
+
+    public FileMessageBodies(MessageFile file, long[] offsets) {
+        this.file = file;
+        this.offsets = offsets;
+        this.size = offsets.length;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return file.read(offsets[index]);
+    }
+
+    @Override
+    public void add(int messageId, String message) throws IOException {
+        long offset = file.append(messageId, message);
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, Math.max(16, size * 2));
+        }
+        offsets[size++] = offset;
+    }
+
+    @Override
+    public void set(int index, int messageId, String message) throws IOException {
+        offsets[index] = file.append(messageId, message);
+    }
+
+    @Override
+    public void remove(int index, int messageId) throws IOException {
+        file.appendRemoval(messageId);
+        System.arraycopy(offsets, index + 1, offsets, index, size - index - 1);
+        size--;
+    }
+
+    @Override
+    public MessageBodies copy() {
+        return new FileMessageBodies(file, Arrays.copyOf(offsets, size));
+    }
+
+    @Override
+    public String getFileName() {
+        return file.getPath().getFileName().toString();
+    }
+
+    // Only safe while no other copy of this group is in use, since it moves every record
+    public void compact() {
+        offsets = file.compact(Arrays.copyOf(offsets, size));
+        size = offsets.length;
+    }
+
+    public boolean needsCompaction() {
+        return file.getRecordCount() > size * 2 + 64;
+    }
+}
@@ -0,0 +1,43 @@
+package com.advancedrotating.messages.models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class InlineMessageBodies implements MessageBodies {
+
+    private final List<String> messages;
+
+    public InlineMessageBodies(List<String> messages) {
+        this.messages = new ArrayList<>(messages);
+    }
+
+    @Override
+    public int size() {
+        return messages.size();
+    }
+
+    @Override
+    public String get(int index) {
+        return messages.get(index);
+    }
+
+    @Override
+    public void add(int messageId, String message) {
+        messages.add(message);
+    }
+
+    @Override
+    public void set(int index, int messageId, String message) {
+        messages.set(index, message);
+    }
+
+    @Override
+    public void remove(int index, int messageId) {
+        messages.remove(index);
+    }
+
+    @Override
+    public MessageBodies copy() {
+        return new InlineMessageBodies(messages);
+    }
+}
@@ -0,0 +1,25 @@
+package com.advancedrotating.messages.models;
+
+import java.io.IOException;
+
+// Message text for a group, by display position; IDs are passed along so file-backed bodies can record them.
+// A failed edit throws and leaves the bodies unchanged.
+public interface MessageBodies {
+
+    int size();
+
+    String get(int index);
+
+    void add(int messageId, String message) throws IOException;
+
+    void set(int index, int messageId, String message) throws IOException;
+
+    void remove(int index, int messageId) throws IOException;
+
+    MessageBodies copy();
+
+    // Name of the backing file under messages/, or null when the text is kept inline in groups.yml
+    default String getFileName() {
+        return null;
+    }
+}
@@ -0,0 +1,258 @@
+package com.advancedrotating.messages.models;
+
+import com.advancedrotating.messages.storage.AtomicFiles;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+// Append-only message text for one group: "<id>\t<text>" adds or replaces a message, "-<id>" deletes it.
+// A message keeps the position of its first record, so edits never reorder the group.
+public class MessageFile {
+
+    private static final int CACHE_SIZE = 256;
+
+    private final Path path;
+    private final Logger logger;
+    // Keyed by record offset; records are never rewritten in place, so cached text cannot go stale
+    private final Map<Long, String> cache = new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private int recordCount;
+
+    public MessageFile(Path path, Logger logger) {
+        this.path = path;
+        this.logger = logger;
+    }
+
+    // Throws FileAlreadyExistsException rather than replace an existing file
+    public static MessageFile create(Path path, Logger logger, List<Integer> messageIds, List<String> messages) throws IOException {
+        Files.createDirectories(path.getParent());
+        try (OutputStream out = Files.newOutputStream(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < messageIds.size(); i++) {
+                out.write(encode(messageIds.get(i), messages.get(i)));
+            }
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        return new MessageFile(path, logger);
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    // Every record in the file, including superseded and deleted ones
+    public synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    // Scans the file once, keeping only each live message's ID and the offset of its latest text
+    public synchronized Index readIndex() throws IOException {
+        Map<Integer, Long> live = new LinkedHashMap<>();
+        int records = 0;
+
+        if (Files.exists(path)) {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+                long offset = 0;
+                long lineStart = 0;
+                StringBuilder key = new StringBuilder();
+                boolean inKey = true;
+                int b;
+                while ((b = in.read()) != -1) {
+                    offset++;
+                    if (b == '\n') {
+                        records++;
+                        applyRecord(live, key.toString(), lineStart);
+                        key.setLength(0);
+                        inKey = true;
+                        lineStart = offset;
+                    } else if (inKey) {
+                        if (b == '\t') {
+                            inKey = false;
+                        } else {
+                            key.append((char) b);
+                        }
+                    }
+                }
+            }
+        }
+
+        recordCount = records;
+
+        int[] ids = new int[live.size()];
+        long[] offsets = new long[live.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Long> entry : live.entrySet()) {
+            ids[i] = entry.getKey();
+            offsets[i] = entry.getValue();
+            i++;
+        }
+        return new Index(ids, offsets);
+    }
+
+    private void applyRecord(Map<Integer, Long> live, String key, long offset) {
+        try {
+            if (key.startsWith("-")) {
+                live.remove(Integer.parseInt(key.substring(1)));
+            } else {
+                live.put(Integer.parseInt(key), offset);
+            }
+        } catch (NumberFormatException e) {
+            logger.warning("Skipping malformed record in " + path.getFileName() + " at byte " + offset);
+        }
+    }
+
+    public synchronized String read(long offset) {
+        String cached = cache.get(offset);
+        if (cached != null) {
+            return cached;
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "r")) {
+            file.seek(offset);
+            ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+            byte[] buffer = new byte[256];
+            int read;
+            outer:
+            while ((read = file.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] == '\n') {
+                        line.write(buffer, 0, i);
+                        break outer;
+                    }
+                }
+                line.write(buffer, 0, read);
+            }
+
+            String record = line.toString(StandardCharsets.UTF_8);
+            int tab = record.indexOf('\t');
+            String message = tab < 0 ? "" : unescape(record.substring(tab + 1));
+            cache.put(offset, message);
+            return message;
+        } catch (IOException e) {
+            logger.severe("Failed to read message from " + path.getFileName() + ": " + e.getMessage());
+            return "";
+        }
+    }
+
+    public synchronized long append(int messageId, String message) throws IOException {
+        long offset = write(encode(messageId, message));
+        cache.put(offset, message);
+        return offset;
+    }
+
+    public synchronized void appendRemoval(int messageId) throws IOException {
+        write(("-" + messageId + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Returns the offset the record starts at; a record that could not be written in full is cut off again
+    private long write(byte[] record) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long offset = channel.size();
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer, offset + buffer.position());
+                }
+            } catch (IOException e) {
+                channel.truncate(offset);
+                throw e;
+            }
+            recordCount++;
+            return offset;
+        }
+    }
+
+    // Rewrites the file with only the given records, returning their new offsets in the same order
+    public synchronized long[] compact(long[] liveOffsets) {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        long[] compacted = new long[liveOffsets.length];
+
+        try (RandomAccessFile source = new RandomAccessFile(path.toFile(), "r");
+             OutputStream out = Files.newOutputStream(temp)) {
+            long position = 0;
+            for (int i = 0; i < liveOffsets.length; i++) {
+                source.seek(liveOffsets[i]);
+                byte[] record = source.readLine().getBytes(StandardCharsets.ISO_8859_1);
+                out.write(record);
+                out.write('\n');
+                compacted[i] = position;
+                position += record.length + 1;
+            }
+        } catch (IOException e) {
+            logger.severe("Failed to compact " + path.getFileName() + ": " + e.getMessage());
+            return liveOffsets;
+        }
+
+        try {
+            AtomicFiles.replace(temp, path);
+        } catch (IOException e) {
+            logger.severe("Failed to replace " + path.getFileName() + ": " + e.getMessage());
+            return liveOffsets;
+        }
+
+        cache.clear();
+        recordCount = compacted.length;
+        return compacted;
+    }
+
+    private static byte[] encode(int messageId, String message) {
+        return (messageId + "\t" + escape(message) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String escape(String message) {
+        return message.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String text) {
+        if (text.indexOf('\\') < 0) {
+            return text;
+        }
+
+        StringBuilder builder = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                builder.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    public static class Index {
+        private final int[] messageIds;
+        private final long[] offsets;
+
+        private Index(int[] messageIds, long[] offsets) {
+            this.messageIds = messageIds;
+            this.offsets = offsets;
+        }
+
+        public int[] getMessageIds() { return messageIds; }
+        public long[] getOffsets() { return offsets; }
+    }
+}
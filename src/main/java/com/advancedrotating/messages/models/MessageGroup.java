@@ -1,7 +1,11 @@
 package com.advancedrotating.messages.models;
 
+import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class MessageGroup {
     private String id;
@@ -9,15 +13,70 @@ public class MessageGroup {
     private int frequency;
     private String prefix;
     private String suffix;
-    private List<String> messages;
+    private MessageBodies bodies;
+    private final List<String> messages = new AbstractList<String>() {
+        @Override
+        public String get(int index) {
+            return bodies.get(index);
+        }
+
+        @Override
+        public int size() {
+            return bodies.size();
+        }
+    };
+    // Stable per-message IDs in display order, parallel to messages; rotation state and the queue refer to these
+    private final List<Integer> messageIds;
+    private int nextMessageId;
+    // Kept current on every edit rather than built on first lookup, since published snapshots are read from I/O threads
+    private final Map<Integer, Integer> positionsById = new HashMap<>();
+    // Selection weights by message ID; messages without an entry weigh 1
+    private Map<Integer, Integer> weights;
+    private String permission;
+    private List<String> worlds;
 
     public MessageGroup(String id, String name, int frequency, String prefix, String suffix, List<String> messages) {
+        this(id, name, frequency, prefix, suffix, messages, sequentialIds(messages.size()), messages.size());
+    }
+
+    public MessageGroup(String id, String name, int frequency, String prefix, String suffix, List<String> messages,
+                        List<Integer> messageIds, int nextMessageId) {
+        this(id, name, frequency, prefix, suffix, new InlineMessageBodies(messages), messageIds, nextMessageId);
+    }
+
+    public MessageGroup(String id, String name, int frequency, String prefix, String suffix, MessageBodies bodies,
+                        List<Integer> messageIds, int nextMessageId) {
+        if (bodies.size() != messageIds.size()) {
+            throw new IllegalArgumentException("Every message needs exactly one ID");
+        }
+
         this.id = id;
         this.name = name;
         this.frequency = frequency;
         this.prefix = prefix;
         this.suffix = suffix;
-        this.messages = new ArrayList<>(messages);
+        this.bodies = bodies;
+        this.messageIds = new ArrayList<>(messageIds);
+        this.nextMessageId = nextMessageId;
+        indexPositions(0);
+        this.weights = new HashMap<>();
+        this.permission = "";
+        this.worlds = new ArrayList<>();
+    }
+
+    public MessageGroup(MessageGroup other) {
+        this(other.id, other.name, other.frequency, other.prefix, other.suffix, other.bodies.copy(), other.messageIds, other.nextMessageId);
+        this.weights = new HashMap<>(other.weights);
+        this.permission = other.permission;
+        this.worlds = new ArrayList<>(other.worlds);
+    }
+
+    private static List<Integer> sequentialIds(int count) {
+        List<Integer> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(i);
+        }
+        return ids;
     }
 
     public String getId() {
@@ -60,31 +119,112 @@ public class MessageGroup {
         this.suffix = suffix;
     }
 
+    // Read-only view; for file-backed groups each get() may read from disk, so avoid iterating large groups
     public List<String> getMessages() {
         return messages;
     }
 
+    public MessageBodies getBodies() {
+        return bodies;
+    }
+
     public void setMessages(List<String> messages) {
-        this.messages = new ArrayList<>(messages);
+        this.bodies = new InlineMessageBodies(messages);
+        this.messageIds.clear();
+        this.positionsById.clear();
+        this.weights = new HashMap<>();
+        for (int i = 0; i < messages.size(); i++) {
+            messageIds.add(nextMessageId++);
+        }
+        indexPositions(0);
     }
 
-    public void addMessage(String message) {
-        this.messages.add(message);
+    // File-backed groups write the edit to disk first; if that fails the group is left unchanged
+    public int addMessage(String message) throws IOException {
+        int messageId = nextMessageId;
+        this.bodies.add(messageId, message);
+        this.nextMessageId++;
+        this.messageIds.add(messageId);
+        this.positionsById.put(messageId, messageIds.size() - 1);
+        return messageId;
     }
 
-    public void removeMessage(int index) {
-        if (index >= 0 && index < messages.size()) {
-            messages.remove(index);
+    public void removeMessage(int index) throws IOException {
+        if (index >= 0 && index < bodies.size()) {
+            bodies.remove(index, messageIds.get(index));
+            weights.remove(messageIds.get(index));
+            positionsById.remove(messageIds.remove(index));
+            indexPositions(index);
         }
     }
 
-    public void updateMessage(int index, String newMessage) {
-        if (index >= 0 && index < messages.size()) {
-            messages.set(index, newMessage);
+    public void updateMessage(int index, String newMessage) throws IOException {
+        if (index >= 0 && index < bodies.size()) {
+            bodies.set(index, messageIds.get(index), newMessage);
         }
     }
 
+    public List<Integer> getMessageIds() {
+        return messageIds;
+    }
+
+    public int getMessageId(int index) {
+        return messageIds.get(index);
+    }
+
+    public int getNextMessageId() {
+        return nextMessageId;
+    }
+
+    // Returns -1 when no message has this ID, e.g. after it was deleted
+    public int indexOfMessageId(int messageId) {
+        Integer position = positionsById.get(messageId);
+        return position == null ? -1 : position;
+    }
+
+    private void indexPositions(int from) {
+        for (int i = from; i < messageIds.size(); i++) {
+            positionsById.put(messageIds.get(i), i);
+        }
+    }
+
+    public int getWeight(int messageId) {
+        return weights.getOrDefault(messageId, 1);
+    }
+
+    public void setWeight(int messageId, int weight) {
+        if (weight <= 1) {
+            weights.remove(messageId);
+        } else {
+            weights.put(messageId, weight);
+        }
+    }
+
+    public Map<Integer, Integer> getWeights() {
+        return weights;
+    }
+
+    public String getPermission() {
+        return permission;
+    }
+
+    public void setPermission(String permission) {
+        this.permission = permission == null ? "" : permission;
+    }
+
+    public List<String> getWorlds() {
+        return worlds;
+    }
+
+    public void setWorlds(List<String> worlds) {
+        this.worlds = new ArrayList<>(worlds);
+    }
+
+    public boolean isTargeted() {
+        return !permission.isEmpty() || !worlds.isEmpty();
+    }
+
     public int getMessageCount() {
-        return messages.size();
+        return bodies.size();
     }
 }
\ No newline at end of file
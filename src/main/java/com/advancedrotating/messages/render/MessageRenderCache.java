@@ -0,0 +1,97 @@
+package com.advancedrotating.messages.render;
+
+import com.advancedrotating.messages.models.MessageGroup;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class MessageRenderCache {
+
+    // File-backed groups keep only this many compiled messages, so a full cycle doesn't load the whole group
+    private static final int FILE_GROUP_CACHE_SIZE = 256;
+
+    private final Map<String, RenderedGroup> renderedGroups;
+
+    public MessageRenderCache() {
+        this.renderedGroups = new HashMap<>();
+    }
+
+    // File-backed groups only return templates already loaded with put, so this never reads a message file
+    public MessageTemplate getTemplate(MessageGroup group, int messageIndex) {
+        if (messageIndex < 0 || messageIndex >= group.getMessages().size()) {
+            return null;
+        }
+
+        RenderedGroup rendered = getRendered(group);
+        MessageTemplate template = rendered.get(messageIndex);
+        if (template == null && rendered.templates != null) {
+            template = compile(group, messageIndex);
+            rendered.put(messageIndex, template);
+        }
+
+        return template;
+    }
+
+    public void put(MessageGroup group, int messageIndex, MessageTemplate template) {
+        getRendered(group).put(messageIndex, template);
+    }
+
+    // Reads the message text, so for file-backed groups this belongs on an I/O thread
+    public static MessageTemplate compile(MessageGroup group, int messageIndex) {
+        return MessageTemplate.compile(group.getPrefix() + group.getMessages().get(messageIndex) + group.getSuffix());
+    }
+
+    private RenderedGroup getRendered(MessageGroup group) {
+        RenderedGroup rendered = renderedGroups.get(group.getId());
+        // A different snapshot means the group was saved or reloaded since it was cached
+        if (rendered == null || rendered.source != group) {
+            rendered = new RenderedGroup(group);
+            renderedGroups.put(group.getId(), rendered);
+        }
+        return rendered;
+    }
+
+    public void invalidate(String groupId) {
+        renderedGroups.remove(groupId);
+    }
+
+    public void clear() {
+        renderedGroups.clear();
+    }
+
+    // Inline groups are already fully in memory, so they get a flat array; file-backed ones an LRU by position
+    private static final class RenderedGroup {
+        private final MessageGroup source;
+        private final MessageTemplate[] templates;
+        private final Map<Integer, MessageTemplate> recent;
+
+        private RenderedGroup(MessageGroup source) {
+            this.source = source;
+            if (source.getBodies().getFileName() == null) {
+                this.templates = new MessageTemplate[source.getMessageCount()];
+                this.recent = null;
+            } else {
+                this.templates = null;
+                this.recent = new LinkedHashMap<>(FILE_GROUP_CACHE_SIZE, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Integer, MessageTemplate> eldest) {
+                        return size() > FILE_GROUP_CACHE_SIZE;
+                    }
+                };
+            }
+        }
+
+        private MessageTemplate get(int messageIndex) {
+            return templates != null ? templates[messageIndex] : recent.get(messageIndex);
+        }
+
+        private void put(int messageIndex, MessageTemplate template) {
+            if (templates != null) {
+                templates[messageIndex] = template;
+            } else {
+                recent.put(messageIndex, template);
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.advancedrotating.messages.render;
+
+import org.bukkit.ChatColor;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public final class MessageTemplate {
+
+    public enum Placeholder {
+        PLAYER("player", true),
+        DISPLAY_NAME("displayname", true),
+        WORLD("world", true),
+        ONLINE("online", false),
+        MAX_PLAYERS("max_players", false);
+
+        private final String token;
+        private final boolean playerSpecific;
+
+        Placeholder(String token, boolean playerSpecific) {
+            this.token = token;
+            this.playerSpecific = playerSpecific;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        private static Placeholder fromToken(String token) {
+            for (Placeholder placeholder : values()) {
+                if (placeholder.token.equalsIgnoreCase(token)) {
+                    return placeholder;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    // literals.length == placeholders.length + 1; literals are colour-translated at compile time
+    private final String[] literals;
+    private final Placeholder[] placeholders;
+    private final boolean playerSpecific;
+    private final String staticText;
+
+    private MessageTemplate(String[] literals, Placeholder[] placeholders) {
+        this.literals = literals;
+        this.placeholders = placeholders;
+
+        boolean specific = false;
+        for (Placeholder placeholder : placeholders) {
+            specific |= placeholder.playerSpecific;
+        }
+        this.playerSpecific = specific;
+        this.staticText = placeholders.length == 0 ? literals[0] : null;
+    }
+
+    public static MessageTemplate compile(String raw) {
+        List<String> literals = new ArrayList<>();
+        List<Placeholder> placeholders = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+
+        int position = 0;
+        while (position < raw.length()) {
+            int open = raw.indexOf('{', position);
+            int close = open < 0 ? -1 : raw.indexOf('}', open + 1);
+            if (open < 0 || close < 0) {
+                literal.append(raw, position, raw.length());
+                break;
+            }
+
+            Placeholder placeholder = Placeholder.fromToken(raw.substring(open + 1, close));
+            if (placeholder == null) {
+                literal.append(raw, position, open + 1);
+                position = open + 1;
+                continue;
+            }
+
+            literal.append(raw, position, open);
+            literals.add(ChatColor.translateAlternateColorCodes('&', literal.toString()));
+            placeholders.add(placeholder);
+            literal.setLength(0);
+            position = close + 1;
+        }
+        literals.add(ChatColor.translateAlternateColorCodes('&', literal.toString()));
+
+        return new MessageTemplate(literals.toArray(new String[0]), placeholders.toArray(new Placeholder[0]));
+    }
+
+    public boolean isStatic() {
+        return staticText != null;
+    }
+
+    public boolean isPlayerSpecific() {
+        return playerSpecific;
+    }
+
+    public String getStaticText() {
+        return staticText;
+    }
+
+    // player may be null for console or shared output; player placeholders then render as their token
+    public String render(Player player, int onlinePlayers, int maxPlayers) {
+        if (staticText != null) {
+            return staticText;
+        }
+
+        StringBuilder buffer = BUFFER.get();
+        buffer.setLength(0);
+        buffer.append(literals[0]);
+        for (int i = 0; i < placeholders.length; i++) {
+            appendValue(buffer, placeholders[i], player, onlinePlayers, maxPlayers);
+            buffer.append(literals[i + 1]);
+        }
+        return buffer.toString();
+    }
+
+    private static void appendValue(StringBuilder buffer, Placeholder placeholder, Player player, int onlinePlayers, int maxPlayers) {
+        switch (placeholder) {
+            case ONLINE:
+                buffer.append(onlinePlayers);
+                return;
+            case MAX_PLAYERS:
+                buffer.append(maxPlayers);
+                return;
+            default:
+                break;
+        }
+
+        if (player == null) {
+            buffer.append('{').append(placeholder.token).append('}');
+            return;
+        }
+
+        switch (placeholder) {
+            case PLAYER:
+                buffer.append(player.getName());
+                break;
+            case DISPLAY_NAME:
+                buffer.append(player.getDisplayName());
+                break;
+            case WORLD:
+                buffer.append(player.getWorld().getName());
+                break;
+            default:
+                break;
+        }
+    }
+}
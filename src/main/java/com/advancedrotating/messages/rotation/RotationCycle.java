@@ -0,0 +1,125 @@
+package com.advancedrotating.messages.rotation;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Persisted state of one group's cycle. The order is rebuilt from the seed, bound and the group's weights, so only the
+// cursor, the few messages that were added or sent outside that order, and weights changed mid-cycle need to be stored.
+// The cursor is the last message ID it passed rather than a position, so deleting messages does not shift it.
+public class RotationCycle {
+
+    private final long seed;
+    private final int bound;
+    private final int cursor;
+    private final long weightHash;
+    private final int[] lateAdditions;
+    private final int[] sentOutOfOrder;
+    private final Map<Integer, Integer> weights;
+
+    public RotationCycle(long seed, int bound, int cursor, long weightHash, int[] lateAdditions, int[] sentOutOfOrder,
+                         Map<Integer, Integer> weights) {
+        this.seed = seed;
+        this.bound = bound;
+        this.cursor = cursor;
+        this.weightHash = weightHash;
+        this.lateAdditions = lateAdditions;
+        this.sentOutOfOrder = sentOutOfOrder;
+        this.weights = Collections.unmodifiableMap(new LinkedHashMap<>(weights));
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public int getBound() {
+        return bound;
+    }
+
+    // -1 at the start of a cycle
+    public int getCursor() {
+        return cursor;
+    }
+
+    // Identifies the weights the order was built with, so a cycle whose weights changed offline is not misread
+    public long getWeightHash() {
+        return weightHash;
+    }
+
+    public int[] getLateAdditions() {
+        return lateAdditions;
+    }
+
+    public int[] getSentOutOfOrder() {
+        return sentOutOfOrder;
+    }
+
+    public Map<Integer, Integer> getWeights() {
+        return weights;
+    }
+
+    // Tab-separated, with comma-separated ID lists and id:weight pairs
+    public String serialize() {
+        return seed + "\t" + bound + "\t" + cursor + "\t" + weightHash + "\t" + joinIds(lateAdditions) + "\t" + joinIds(sentOutOfOrder) + "\t" + joinWeights(weights);
+    }
+
+    public static RotationCycle parse(String text) {
+        String[] fields = text.split("\t", -1);
+        if (fields.length != 7) {
+            throw new IllegalArgumentException("Expected 7 fields in rotation cycle, found " + fields.length);
+        }
+        return new RotationCycle(Long.parseLong(fields[0]), Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+            Long.parseLong(fields[3]), parseIds(fields[4]), parseIds(fields[5]), parseWeights(fields[6]));
+    }
+
+    public static String joinIds(int[] ids) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(ids[i]);
+        }
+        return builder.toString();
+    }
+
+    public static String joinWeights(Map<Integer, Integer> weights) {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<Integer, Integer> entry : weights.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(entry.getKey()).append(':').append(entry.getValue());
+        }
+        return builder.toString();
+    }
+
+    public static int[] parseIds(String text) {
+        if (text == null || text.isEmpty()) {
+            return new int[0];
+        }
+
+        String[] parts = text.split(",");
+        int[] ids = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            ids[i] = Integer.parseInt(parts[i]);
+        }
+        return ids;
+    }
+
+    public static Map<Integer, Integer> parseWeights(String text) {
+        Map<Integer, Integer> parsed = new LinkedHashMap<>();
+        if (text == null || text.isEmpty()) {
+            return parsed;
+        }
+
+        for (String part : text.split(",")) {
+            int separator = part.indexOf(':');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Malformed weight entry: " + part);
+            }
+            parsed.put(Integer.parseInt(part.substring(0, separator)), Integer.parseInt(part.substring(separator + 1)));
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,210 @@
+package com.advancedrotating.messages.rotation;
+
+import com.advancedrotating.messages.models.MessageGroup;
+import com.advancedrotating.messages.storage.PoolChangeSet;
+import com.advancedrotating.messages.storage.RotationStorage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class RotationManager {
+
+    private final RotationStorage storage;
+    private final Map<String, RotationPool> pools;
+    private final Map<String, RotationCycle> storedCycles;
+
+    public RotationManager(RotationStorage storage) {
+        this.storage = storage;
+        this.pools = new HashMap<>();
+        this.storedCycles = new HashMap<>();
+    }
+
+    // Stored cycles only become pools once reconcile knows each group's messages
+    public void load() {
+        pools.clear();
+        storedCycles.clear();
+        storedCycles.putAll(storage.loadRotationCycles());
+    }
+
+    // Brings the pools in line with the configured groups, keeping each cycle's progress for messages that still exist
+    public PoolChangeSet reconcile(Collection<MessageGroup> groups) {
+        PoolChangeSet changes = new PoolChangeSet();
+        Set<String> configured = new HashSet<>();
+
+        for (MessageGroup group : groups) {
+            configured.add(group.getId());
+            RotationPool pool = pools.get(group.getId());
+            boolean changed = false;
+
+            if (pool == null) {
+                RotationCycle cycle = storedCycles.remove(group.getId());
+                if (cycle != null) {
+                    pool = RotationPool.restore(cycle, group.getWeights());
+                    if (pool == null) {
+                        changes.restartCycle(group.getId());
+                        cycle = null;
+                    }
+                }
+                if (pool == null) {
+                    pool = new RotationPool(group.getNextMessageId());
+                }
+                applyWeights(pool, group);
+                for (int messageId : group.getMessageIds()) {
+                    boolean added = cycle == null ? pool.add(messageId) : pool.restoreMember(messageId);
+                    if (added) {
+                        changes.countChange();
+                        changed = true;
+                    }
+                }
+                if (cycle == null) {
+                    pool.reset();
+                    changed = true;
+                } else {
+                    List<Integer> dropped = pool.dropStaleEntries();
+                    for (int i = 0; i < dropped.size(); i++) {
+                        changes.countChange();
+                    }
+                    changed |= !dropped.isEmpty();
+                }
+                pools.put(group.getId(), pool);
+            } else {
+                Set<Integer> messageIds = new HashSet<>(group.getMessageIds());
+                for (int messageId : pool.getMembers()) {
+                    if (!messageIds.contains(messageId)) {
+                        pool.remove(messageId);
+                        changes.countChange();
+                        changed = true;
+                    }
+                }
+                changed |= applyWeights(pool, group);
+                for (int messageId : group.getMessageIds()) {
+                    if (pool.add(messageId)) {
+                        changes.countChange();
+                        changed = true;
+                    }
+                }
+            }
+
+            if (changed) {
+                changes.saveCycle(group.getId(), pool.getCycle());
+            }
+        }
+
+        for (String groupId : new ArrayList<>(pools.keySet())) {
+            if (!configured.contains(groupId)) {
+                pools.remove(groupId);
+                changes.removeGroup(groupId);
+            }
+        }
+        for (String groupId : storedCycles.keySet()) {
+            if (!configured.contains(groupId)) {
+                changes.removeGroup(groupId);
+            }
+        }
+        storedCycles.clear();
+
+        if (!changes.isEmpty()) {
+            storage.applyPoolChanges(changes);
+        }
+        return changes;
+    }
+
+    private boolean applyWeights(RotationPool pool, MessageGroup group) {
+        boolean changed = false;
+        for (int messageId : group.getMessageIds()) {
+            changed |= pool.setWeight(messageId, group.getWeight(messageId));
+        }
+        return changed;
+    }
+
+    public void initializeGroup(MessageGroup group) {
+        RotationPool pool = new RotationPool(group.getNextMessageId());
+        applyWeights(pool, group);
+        for (int messageId : group.getMessageIds()) {
+            pool.add(messageId);
+        }
+        pool.reset();
+        pools.put(group.getId(), pool);
+        storage.saveRotationCycle(group.getId(), pool.getCycle());
+    }
+
+    // Pools are keyed by stable message ID. Returns -1 when the group has no messages; starts a new cycle once every message was sent
+    public int pickMessage(String groupId) {
+        RotationPool pool = pools.get(groupId);
+        if (pool == null || pool.getMemberCount() == 0) {
+            return -1;
+        }
+
+        if (pool.getAvailableCount() == 0) {
+            resetGroup(groupId);
+        }
+
+        return pool.pickAvailable();
+    }
+
+    public boolean isAvailable(String groupId, int messageId) {
+        RotationPool pool = pools.get(groupId);
+        return pool != null && pool.isAvailable(messageId);
+    }
+
+    public int getAvailableCount(String groupId) {
+        RotationPool pool = pools.get(groupId);
+        return pool == null ? 0 : pool.getAvailableCount();
+    }
+
+    public void markSent(String groupId, int messageId) {
+        RotationPool pool = pools.get(groupId);
+        if (pool != null && pool.markSent(messageId)) {
+            storage.saveRotationCycle(groupId, pool.getCycle());
+        }
+    }
+
+    // For messages that were picked and marked sent but never delivered
+    public void returnMessage(String groupId, int messageId) {
+        RotationPool pool = pools.get(groupId);
+        if (pool != null && pool.returnToCycle(messageId)) {
+            storage.saveRotationCycle(groupId, pool.getCycle());
+        }
+    }
+
+    public void resetGroup(String groupId) {
+        RotationPool pool = pools.get(groupId);
+        if (pool != null) {
+            pool.reset();
+            storage.saveRotationCycle(groupId, pool.getCycle());
+        }
+    }
+
+    // A message added mid-cycle is still sent before the cycle ends
+    public void addMessage(String groupId, int messageId) {
+        RotationPool pool = pools.computeIfAbsent(groupId, id -> new RotationPool());
+        if (pool.add(messageId)) {
+            storage.saveRotationCycle(groupId, pool.getCycle());
+        }
+    }
+
+    public void removeMessage(String groupId, int messageId) {
+        RotationPool pool = pools.get(groupId);
+        if (pool != null && pool.remove(messageId)) {
+            storage.saveRotationCycle(groupId, pool.getCycle());
+        }
+    }
+
+    // Takes effect from the next cycle; the current order keeps the weight it was built with
+    public void setWeight(String groupId, int messageId, int weight) {
+        RotationPool pool = pools.get(groupId);
+        if (pool != null && pool.setWeight(messageId, weight)) {
+            storage.saveRotationCycle(groupId, pool.getCycle());
+        }
+    }
+
+    public void clearGroup(String groupId) {
+        pools.remove(groupId);
+        storage.deleteRotationCycle(groupId);
+    }
+}
@@ -0,0 +1,547 @@
+package com.advancedrotating.messages.rotation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Each cycle walks the members in the order of a seeded random key per message ID, so the next message is normally one
+// array read. Keys depend only on the seed, the ID and its weight, which lets a stored cycle be rebuilt from whichever
+// messages still exist. Messages added mid-cycle are drawn by weight from a Fenwick tree, and messages sent out of order
+// are remembered until the cursor passes them.
+public class RotationPool {
+
+    private long[] members;
+    private long[] sent;
+    private long[] late;
+    // Configured weights apply to new cycles and late additions; the current order keeps the weights it was built with,
+    // and only those that differ from the configured ones are stored with the cycle
+    private int[] configuredWeights;
+    private final Map<Integer, Integer> cycleWeightOverrides = new HashMap<>();
+    private long weightHash;
+    // Late additions in arrival order; removed ones leave a -1 behind until the next cycle
+    private int[] lateSlots = new int[8];
+    private final Map<Integer, Integer> latePositions = new HashMap<>();
+    private int lateCount;
+    // Fenwick tree over lateSlots holding each late addition's weight while it is available
+    private long[] lateTree = new long[lateSlots.length + 1];
+    private final Set<Integer> sentOutOfOrder = new LinkedHashSet<>();
+    private long seed;
+    private int bound;
+    // Last message ID the cursor passed, or -1 at the start of a cycle
+    private int cursorSlot = -1;
+    // Members still ahead of the cursor, built on first use in each cycle
+    private int[] order;
+    private int cursor;
+    private int memberCount;
+    private int availableCount;
+    private long availableWeight;
+    private long lateAvailableWeight;
+
+    public RotationPool() {
+        this(0);
+    }
+
+    public RotationPool(int initialSize) {
+        int words = Math.max(1, (initialSize + 63) >>> 6);
+        this.members = new long[words];
+        this.sent = new long[words];
+        this.late = new long[words];
+        this.configuredWeights = new int[words << 6];
+        Arrays.fill(configuredWeights, 1);
+    }
+
+    // Rebuilds a stored cycle without members, or returns null if the order can no longer be reproduced because the
+    // configured weights changed while the cycle was not running. Add the members with restoreMember.
+    public static RotationPool restore(RotationCycle cycle, Map<Integer, Integer> configuredWeights) {
+        RotationPool pool = new RotationPool(cycle.getBound());
+        for (Map.Entry<Integer, Integer> weight : configuredWeights.entrySet()) {
+            pool.ensureCapacity(weight.getKey());
+            pool.configuredWeights[weight.getKey()] = weight.getValue();
+        }
+        pool.cycleWeightOverrides.putAll(cycle.getWeights());
+        pool.seed = cycle.getSeed();
+        pool.bound = cycle.getBound();
+        for (int slot : cycle.getLateAdditions()) {
+            pool.ensureCapacity(slot);
+            if (!pool.isLate(slot)) {
+                pool.appendLate(slot);
+            }
+        }
+        for (int slot : cycle.getSentOutOfOrder()) {
+            pool.sentOutOfOrder.add(slot);
+        }
+
+        pool.weightHash = pool.hashCycleWeights(toArray(configuredWeights.keySet()));
+        // At the start of a cycle nothing depends on the order yet, so it does not need to match
+        if (cycle.getCursor() >= 0 && pool.weightHash != cycle.getWeightHash()) {
+            return null;
+        }
+        pool.cursorSlot = cycle.getCursor();
+        return pool;
+    }
+
+    // Returns true when the stored cycle did not know this message, which then joins the cycle as a late addition
+    public boolean restoreMember(int slot) {
+        ensureCapacity(slot);
+        if (contains(slot)) {
+            return false;
+        }
+
+        members[slot >>> 6] |= 1L << slot;
+        memberCount++;
+
+        boolean unknown = false;
+        boolean wasSent;
+        if (isLate(slot)) {
+            wasSent = sentOutOfOrder.contains(slot);
+        } else if (slot < bound) {
+            wasSent = sentOutOfOrder.contains(slot) || !isAhead(slot);
+        } else {
+            cycleWeightOverrides.remove(slot);
+            appendLate(slot);
+            unknown = true;
+            wasSent = false;
+        }
+
+        if (wasSent) {
+            sent[slot >>> 6] |= 1L << slot;
+        } else {
+            makeAvailable(slot);
+        }
+        return unknown;
+    }
+
+    // Drops stored references to messages that no longer exist and returns their IDs
+    public List<Integer> dropStaleEntries() {
+        Set<Integer> dropped = new LinkedHashSet<>();
+        for (int i = 0; i < lateCount; i++) {
+            int slot = lateSlots[i];
+            if (slot >= 0 && !contains(slot)) {
+                removeLate(slot);
+                dropped.add(slot);
+            }
+        }
+        for (Integer slot : sentOutOfOrder) {
+            if (!contains(slot)) {
+                dropped.add(slot);
+            }
+        }
+        sentOutOfOrder.removeIf(slot -> !contains(slot));
+        return new ArrayList<>(dropped);
+    }
+
+    // Additions always join as late additions: IDs are never reused, so the order cannot already hold a place for them
+    public boolean add(int slot) {
+        ensureCapacity(slot);
+        if (contains(slot)) {
+            return false;
+        }
+
+        members[slot >>> 6] |= 1L << slot;
+        sent[slot >>> 6] &= ~(1L << slot);
+        memberCount++;
+        if (slot >= bound) {
+            cycleWeightOverrides.remove(slot);
+        }
+        if (!isLate(slot)) {
+            appendLate(slot);
+        }
+        makeAvailable(slot);
+        return true;
+    }
+
+    public boolean remove(int slot) {
+        if (!contains(slot)) {
+            return false;
+        }
+
+        int word = slot >>> 6;
+        long bit = 1L << slot;
+        int weight = cycleWeight(slot);
+        if ((sent[word] & bit) == 0) {
+            makeUnavailable(slot, weight);
+        }
+        if (isLate(slot)) {
+            removeLate(slot);
+        }
+        sentOutOfOrder.remove(slot);
+        members[word] &= ~bit;
+        sent[word] &= ~bit;
+        memberCount--;
+
+        // Deleted messages lose their configured weight, so the order's weight for them has to be stored
+        configuredWeights[slot] = 1;
+        if (slot < bound && weight != 1) {
+            cycleWeightOverrides.put(slot, weight);
+        } else {
+            cycleWeightOverrides.remove(slot);
+        }
+        return true;
+    }
+
+    public boolean markSent(int slot) {
+        if (!isAvailable(slot)) {
+            return false;
+        }
+
+        boolean late = isLate(slot);
+        if (!late) {
+            skipUnavailable();
+        }
+
+        makeUnavailable(slot, cycleWeight(slot));
+        sent[slot >>> 6] |= 1L << slot;
+        if (late) {
+            sentOutOfOrder.add(slot);
+            return true;
+        }
+
+        if (cursor < order.length && order[cursor] == slot) {
+            cursorSlot = slot;
+            cursor++;
+        } else {
+            sentOutOfOrder.add(slot);
+        }
+        return true;
+    }
+
+    // Puts a sent message back into the cycle as a late addition, e.g. when it was dropped before it was delivered
+    public boolean returnToCycle(int slot) {
+        if (!contains(slot) || isAvailable(slot)) {
+            return false;
+        }
+
+        sent[slot >>> 6] &= ~(1L << slot);
+        sentOutOfOrder.remove(slot);
+        if (!isLate(slot)) {
+            appendLate(slot);
+        }
+        makeAvailable(slot);
+        return true;
+    }
+
+    // Returns true when the stored cycle has to be saved again to keep its order reproducible
+    public boolean setWeight(int slot, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight must be at least 1: " + weight);
+        }
+
+        ensureCapacity(slot);
+        int cycleWeight = cycleWeight(slot);
+        configuredWeights[slot] = weight;
+        if (slot >= bound && !isLate(slot)) {
+            cycleWeightOverrides.remove(slot);
+            return false;
+        }
+        if (cycleWeight == weight) {
+            return cycleWeightOverrides.remove(slot) != null;
+        }
+        return cycleWeightOverrides.put(slot, cycleWeight) == null;
+    }
+
+    public int getWeight(int slot) {
+        return slot >= 0 && slot < configuredWeights.length ? configuredWeights[slot] : 1;
+    }
+
+    // Starts a new cycle with a fresh seed over every current member
+    public void reset() {
+        int[] current = getMembers();
+        Arrays.fill(sent, 0L);
+        clearLate();
+        sentOutOfOrder.clear();
+        cycleWeightOverrides.clear();
+
+        seed = ThreadLocalRandom.current().nextLong();
+        bound = current.length == 0 ? 0 : current[current.length - 1] + 1;
+        cursorSlot = -1;
+        order = null;
+        cursor = 0;
+        weightHash = hashCycleWeights(current);
+
+        availableCount = memberCount;
+        availableWeight = 0;
+        lateAvailableWeight = 0;
+        for (int slot : current) {
+            availableWeight += configuredWeights[slot];
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(members, 0L);
+        Arrays.fill(sent, 0L);
+        clearLate();
+        sentOutOfOrder.clear();
+        memberCount = 0;
+        availableCount = 0;
+        availableWeight = 0;
+        lateAvailableWeight = 0;
+    }
+
+    public boolean contains(int slot) {
+        int word = slot >>> 6;
+        return slot >= 0 && word < members.length && (members[word] & (1L << slot)) != 0;
+    }
+
+    public boolean isAvailable(int slot) {
+        int word = slot >>> 6;
+        return contains(slot) && (sent[word] & (1L << slot)) == 0;
+    }
+
+    // Late additions are drawn by weight against the rest of the order, which is otherwise taken at the cursor
+    public int pickAvailable() {
+        if (availableCount == 0) {
+            return -1;
+        }
+
+        if (lateAvailableWeight > 0 && (lateAvailableWeight == availableWeight
+                || ThreadLocalRandom.current().nextLong(availableWeight) < lateAvailableWeight)) {
+            return pickLateAddition();
+        }
+
+        skipUnavailable();
+        return cursor < order.length ? order[cursor] : -1;
+    }
+
+    public RotationCycle getCycle() {
+        int[] lateAdditions = new int[latePositions.size()];
+        int next = 0;
+        for (int i = 0; i < lateCount; i++) {
+            if (lateSlots[i] >= 0) {
+                lateAdditions[next++] = lateSlots[i];
+            }
+        }
+        return new RotationCycle(seed, bound, cursorSlot, weightHash, lateAdditions, toArray(sentOutOfOrder), cycleWeightOverrides);
+    }
+
+    public int[] getMembers() {
+        int[] result = new int[memberCount];
+        int next = 0;
+        for (int i = 0; i < members.length; i++) {
+            long remaining = members[i];
+            while (remaining != 0) {
+                result[next++] = (i << 6) + Long.numberOfTrailingZeros(remaining);
+                remaining &= remaining - 1;
+            }
+        }
+        return result;
+    }
+
+    public int getMemberCount() {
+        return memberCount;
+    }
+
+    public int getAvailableCount() {
+        return availableCount;
+    }
+
+    // Descends the Fenwick tree to the late addition whose weight range holds a random target
+    private int pickLateAddition() {
+        long target = ThreadLocalRandom.current().nextLong(lateAvailableWeight);
+        int position = 0;
+        for (int step = Integer.highestOneBit(lateTree.length - 1); step > 0; step >>>= 1) {
+            int next = position + step;
+            if (next < lateTree.length && lateTree[next] <= target) {
+                position = next;
+                target -= lateTree[next];
+            }
+        }
+        return position < lateCount ? lateSlots[position] : -1;
+    }
+
+    // Moves the cursor past IDs that were deleted, joined late, or were already sent out of order
+    private void skipUnavailable() {
+        buildOrder();
+        while (cursor < order.length) {
+            int slot = order[cursor];
+            if (!isLate(slot)) {
+                if (isAvailable(slot)) {
+                    return;
+                }
+                sentOutOfOrder.remove(slot);
+            }
+            cursorSlot = slot;
+            cursor++;
+        }
+    }
+
+    // Sorts the members still ahead of the cursor, so a cycle costs O(m log m) in its live messages
+    private void buildOrder() {
+        if (order != null) {
+            return;
+        }
+
+        long passed = cursorSlot < 0 ? Long.MIN_VALUE : orderKey(cursorSlot);
+        long[] keyed = new long[memberCount];
+        int count = 0;
+        for (int slot : getMembers()) {
+            if (slot < bound && !isLate(slot)) {
+                long key = orderKey(slot);
+                if (key > passed) {
+                    keyed[count++] = key;
+                }
+            }
+        }
+        Arrays.sort(keyed, 0, count);
+
+        order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = (int) keyed[i];
+        }
+        cursor = 0;
+    }
+
+    // Exponential keys with rate equal to the weight: sorting by them is the same as repeated weighted draws without
+    // replacement. Positive float bits sort like the floats themselves, leaving the low half for the ID as tie-breaker.
+    private long orderKey(int slot) {
+        long z = seed + (slot + 1L) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z ^= z >>> 31;
+        double uniform = (z >>> 11) * 0x1.0p-53;
+        float key = (float) Math.abs(StrictMath.log(1.0 - uniform) / cycleWeight(slot));
+        return (long) Float.floatToIntBits(key) << 32 | slot;
+    }
+
+    private boolean isAhead(int slot) {
+        return cursorSlot < 0 || orderKey(slot) > orderKey(cursorSlot);
+    }
+
+    // Only IDs below the bound are part of the order, and only weights other than 1 count. Messages returned to the
+    // cycle as late additions still count, since their weight was part of the order when it was built.
+    private long hashCycleWeights(int[] configuredSlots) {
+        long hash = 0;
+        for (int slot : configuredSlots) {
+            if (!cycleWeightOverrides.containsKey(slot)) {
+                hash += weightTerm(slot, getWeight(slot));
+            }
+        }
+        for (Map.Entry<Integer, Integer> override : cycleWeightOverrides.entrySet()) {
+            hash += weightTerm(override.getKey(), override.getValue());
+        }
+        return hash;
+    }
+
+    private long weightTerm(int slot, int weight) {
+        if (weight == 1 || slot >= bound) {
+            return 0;
+        }
+        return (slot + 1) * 0x9E3779B97F4A7C15L ^ weight * 0xC2B2AE3D27D4EB4FL;
+    }
+
+    private int cycleWeight(int slot) {
+        if (!cycleWeightOverrides.isEmpty()) {
+            Integer override = cycleWeightOverrides.get(slot);
+            if (override != null) {
+                return override;
+            }
+        }
+        return getWeight(slot);
+    }
+
+    private void makeAvailable(int slot) {
+        int weight = cycleWeight(slot);
+        availableCount++;
+        availableWeight += weight;
+        if (isLate(slot)) {
+            lateAvailableWeight += weight;
+            updateLateTree(latePositions.get(slot), weight);
+        }
+    }
+
+    private void makeUnavailable(int slot, int weight) {
+        availableCount--;
+        availableWeight -= weight;
+        if (isLate(slot)) {
+            lateAvailableWeight -= weight;
+            updateLateTree(latePositions.get(slot), -weight);
+        }
+    }
+
+    private boolean isLate(int slot) {
+        int word = slot >>> 6;
+        return slot >= 0 && word < late.length && (late[word] & (1L << slot)) != 0;
+    }
+
+    // Joins with no weight in the tree; makeAvailable adds it
+    private void appendLate(int slot) {
+        if (lateCount == lateSlots.length) {
+            lateSlots = Arrays.copyOf(lateSlots, lateCount * 2);
+            rebuildLateTree();
+        }
+        late[slot >>> 6] |= 1L << slot;
+        latePositions.put(slot, lateCount);
+        lateSlots[lateCount++] = slot;
+    }
+
+    // The slot's weight must already be out of the tree
+    private void removeLate(int slot) {
+        late[slot >>> 6] &= ~(1L << slot);
+        lateSlots[latePositions.remove(slot)] = -1;
+    }
+
+    private void clearLate() {
+        for (int i = 0; i < lateCount; i++) {
+            if (lateSlots[i] >= 0) {
+                late[lateSlots[i] >>> 6] &= ~(1L << lateSlots[i]);
+            }
+        }
+        latePositions.clear();
+        lateCount = 0;
+        Arrays.fill(lateTree, 0L);
+    }
+
+    private void updateLateTree(int position, long delta) {
+        for (int i = position + 1; i < lateTree.length; i += i & -i) {
+            lateTree[i] += delta;
+        }
+    }
+
+    // Linear-time Fenwick build over the available late additions
+    private void rebuildLateTree() {
+        lateTree = new long[lateSlots.length + 1];
+        for (int i = 0; i < lateCount; i++) {
+            int slot = lateSlots[i];
+            if (slot >= 0 && isAvailable(slot)) {
+                lateTree[i + 1] += cycleWeight(slot);
+            }
+        }
+        for (int i = 1; i < lateTree.length; i++) {
+            int parent = i + (i & -i);
+            if (parent < lateTree.length) {
+                lateTree[parent] += lateTree[i];
+            }
+        }
+    }
+
+    private static int[] toArray(Collection<Integer> values) {
+        int[] result = new int[values.size()];
+        int next = 0;
+        for (int value : values) {
+            result[next++] = value;
+        }
+        return result;
+    }
+
+    private void ensureCapacity(int slot) {
+        if (slot < 0) {
+            throw new IllegalArgumentException("Slot must not be negative: " + slot);
+        }
+
+        int words = (slot >>> 6) + 1;
+        if (words > members.length) {
+            int oldSlots = configuredWeights.length;
+            int newLength = Math.max(words, members.length * 2);
+            members = Arrays.copyOf(members, newLength);
+            sent = Arrays.copyOf(sent, newLength);
+            late = Arrays.copyOf(late, newLength);
+            configuredWeights = Arrays.copyOf(configuredWeights, newLength << 6);
+            Arrays.fill(configuredWeights, oldSlots, configuredWeights.length, 1);
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.advancedrotating.messages.scheduler;
+
+import com.advancedrotating.messages.AdvancedRotatingMessagesPlugin;
+import com.advancedrotating.messages.config.ConfigManager;
+import com.advancedrotating.messages.models.MessageGroup;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerCommandSendEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+
+import java.util.*;
+
+// Member sets are only changed on the global thread, but a player's world and permissions are read on that player's
+// own thread, against the targets snapshot that was current when the check was scheduled
+public class AudienceIndex implements Listener {
+
+    private final AdvancedRotatingMessagesPlugin plugin;
+    private final ConfigManager configManager;
+    private final Map<String, Set<Player>> members;
+    private final Set<Player> online;
+    // Replaced whenever a targeted group changes, so a check against an older snapshot can be recognised and dropped
+    private volatile Map<String, Target> targets;
+
+    public AudienceIndex(AdvancedRotatingMessagesPlugin plugin, ConfigManager configManager) {
+        this.plugin = plugin;
+        this.configManager = configManager;
+        this.members = new HashMap<>();
+        this.online = new LinkedHashSet<>();
+        this.targets = Collections.emptyMap();
+    }
+
+    public void start() {
+        plugin.getServer().getPluginManager().registerEvents(this, plugin);
+        rebuild();
+    }
+
+    public void rebuild() {
+        Map<String, Target> rebuilt = new HashMap<>();
+        for (MessageGroup group : configManager.getGroups().values()) {
+            if (group.isTargeted()) {
+                rebuilt.put(group.getId(), new Target(group));
+            }
+        }
+        members.keySet().retainAll(rebuilt.keySet());
+        targets = Collections.unmodifiableMap(rebuilt);
+
+        online.clear();
+        online.addAll(Bukkit.getOnlinePlayers());
+        refreshAll();
+    }
+
+    public void onGroupChanged(String groupId) {
+        MessageGroup group = configManager.getGroup(groupId);
+        Map<String, Target> updated = new HashMap<>(targets);
+        if (group == null || !group.isTargeted()) {
+            if (updated.remove(groupId) == null) {
+                return;
+            }
+            members.remove(groupId);
+        } else {
+            updated.put(groupId, new Target(group));
+        }
+        targets = Collections.unmodifiableMap(updated);
+        refreshAll();
+    }
+
+    // Untargeted groups reach everyone online; targeted ones use their maintained member set
+    public Collection<? extends Player> getRecipients(MessageGroup group) {
+        if (!targets.containsKey(group.getId())) {
+            return Bukkit.getOnlinePlayers();
+        }
+        return members.getOrDefault(group.getId(), Collections.emptySet());
+    }
+
+    // Folia fires these on region threads, so the index is only ever changed from the global one
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        Player player = event.getPlayer();
+        plugin.getTaskScheduler().runGlobal(() -> {
+            online.add(player);
+            refresh(player);
+        });
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        Player player = event.getPlayer();
+        plugin.getTaskScheduler().runGlobal(() -> {
+            online.remove(player);
+            for (Set<Player> groupMembers : members.values()) {
+                groupMembers.remove(player);
+            }
+        });
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+        refresh(event.getPlayer());
+    }
+
+    // The server resends a player's command list whenever their permissions are recalculated (op changes,
+    // attachments, and permission plugins that update the client command list), so this doubles as that event
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onCommandsSent(PlayerCommandSendEvent event) {
+        refresh(event.getPlayer());
+    }
+
+    private void refreshAll() {
+        for (Player player : online) {
+            refresh(player);
+        }
+    }
+
+    private void refresh(Player player) {
+        Map<String, Target> checked = targets;
+        if (checked.isEmpty()) {
+            return;
+        }
+
+        plugin.getTaskScheduler().runForPlayer(player, () -> {
+            Set<String> matched = new HashSet<>();
+            for (Map.Entry<String, Target> entry : checked.entrySet()) {
+                if (entry.getValue().matches(player)) {
+                    matched.add(entry.getKey());
+                }
+            }
+            plugin.getTaskScheduler().runGlobal(() -> apply(player, checked, matched));
+        });
+    }
+
+    private void apply(Player player, Map<String, Target> checked, Set<String> matched) {
+        // A newer check is already scheduled for every online player once the targets change
+        if (checked != targets || !online.contains(player)) {
+            return;
+        }
+
+        for (String groupId : checked.keySet()) {
+            if (matched.contains(groupId)) {
+                members.computeIfAbsent(groupId, id -> new LinkedHashSet<>()).add(player);
+            } else {
+                Set<Player> groupMembers = members.get(groupId);
+                if (groupMembers != null) {
+                    groupMembers.remove(player);
+                }
+            }
+        }
+    }
+
+    private static final class Target {
+        private final String permission;
+        private final Set<String> worlds;
+
+        private Target(MessageGroup group) {
+            this.permission = group.getPermission();
+            this.worlds = new HashSet<>(group.getWorlds());
+        }
+
+        private boolean matches(Player player) {
+            if (!worlds.isEmpty() && !worlds.contains(player.getWorld().getName())) {
+                return false;
+            }
+            return permission.isEmpty() || player.hasPermission(permission);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.advancedrotating.messages.scheduler;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+// Min-heap of group due times. Superseded heap entries are left in place and skipped when they reach the head
+public class DeadlineQueue {
+
+    private final PriorityQueue<Deadline> heap = new PriorityQueue<>(Comparator.comparingLong(Deadline::getDueTime));
+    private final Map<String, Deadline> active = new HashMap<>();
+
+    public void schedule(String groupId, long lastSent, long dueTime) {
+        Deadline deadline = new Deadline(groupId, lastSent, dueTime);
+        active.put(groupId, deadline);
+        heap.add(deadline);
+    }
+
+    // The latest deadline for a group, even if it was already polled and not rescheduled yet
+    public Deadline get(String groupId) {
+        return active.get(groupId);
+    }
+
+    public void remove(String groupId) {
+        active.remove(groupId);
+    }
+
+    public void clear() {
+        heap.clear();
+        active.clear();
+    }
+
+    public Deadline peek() {
+        Deadline head = heap.peek();
+        while (head != null && active.get(head.groupId) != head) {
+            heap.poll();
+            head = heap.peek();
+        }
+        return head;
+    }
+
+    public Deadline poll() {
+        Deadline head = peek();
+        if (head != null) {
+            heap.poll();
+        }
+        return head;
+    }
+
+    public int size() {
+        return active.size();
+    }
+
+    public static final class Deadline {
+        private final String groupId;
+        private final long lastSent;
+        private final long dueTime;
+
+        private Deadline(String groupId, long lastSent, long dueTime) {
+            this.groupId = groupId;
+            this.lastSent = lastSent;
+            this.dueTime = dueTime;
+        }
+
+        public String getGroupId() { return groupId; }
+        public long getLastSent() { return lastSent; }
+        public long getDueTime() { return dueTime; }
+    }
+}
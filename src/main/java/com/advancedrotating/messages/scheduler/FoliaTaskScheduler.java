@@ -0,0 +1,150 @@
+package com.advancedrotating.messages.scheduler;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Folia's region schedulers, reached through method handles so the plugin still builds against the plain Spigot API.
+// Every handle is adapted to a generic signature once, so calls are plain invokeExact without reflection
+public class FoliaTaskScheduler implements TaskScheduler {
+
+    private static final String SCHEDULER_PACKAGE = "io.papermc.paper.threadedregions.scheduler.";
+    private static final long MILLIS_PER_TICK = 50;
+
+    private final Plugin plugin;
+    private final MethodHandle isGlobalTickThread;
+    private final MethodHandle globalExecute;
+    private final MethodHandle globalRunDelayed;
+    private final MethodHandle globalRunAtFixedRate;
+    private final MethodHandle asyncRunNow;
+    private final MethodHandle asyncRunAtFixedRate;
+    private final MethodHandle getEntityScheduler;
+    private final MethodHandle entityExecute;
+    private final MethodHandle cancelTask;
+
+    public FoliaTaskScheduler(Plugin plugin) throws ReflectiveOperationException {
+        this.plugin = plugin;
+
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        Class<?> globalType = Class.forName(SCHEDULER_PACKAGE + "GlobalRegionScheduler");
+        Class<?> asyncType = Class.forName(SCHEDULER_PACKAGE + "AsyncScheduler");
+        Class<?> entityType = Class.forName(SCHEDULER_PACKAGE + "EntityScheduler");
+        Class<?> taskType = Class.forName(SCHEDULER_PACKAGE + "ScheduledTask");
+        Object globalScheduler = Bukkit.class.getMethod("getGlobalRegionScheduler").invoke(null);
+        Object asyncScheduler = Bukkit.class.getMethod("getAsyncScheduler").invoke(null);
+
+        isGlobalTickThread = generic(lookup.unreflect(Bukkit.class.getMethod("isGlobalTickThread")));
+        globalExecute = generic(lookup.unreflect(globalType.getMethod("execute", Plugin.class, Runnable.class)).bindTo(globalScheduler));
+        globalRunDelayed = generic(lookup.unreflect(globalType.getMethod("runDelayed", Plugin.class, Consumer.class, long.class))
+            .bindTo(globalScheduler));
+        globalRunAtFixedRate = generic(lookup.unreflect(globalType.getMethod("runAtFixedRate", Plugin.class, Consumer.class,
+            long.class, long.class)).bindTo(globalScheduler));
+        asyncRunNow = generic(lookup.unreflect(asyncType.getMethod("runNow", Plugin.class, Consumer.class)).bindTo(asyncScheduler));
+        asyncRunAtFixedRate = generic(lookup.unreflect(asyncType.getMethod("runAtFixedRate", Plugin.class, Consumer.class,
+            long.class, long.class, TimeUnit.class)).bindTo(asyncScheduler));
+        getEntityScheduler = generic(lookup.unreflect(Player.class.getMethod("getScheduler")));
+        entityExecute = generic(lookup.unreflect(entityType.getMethod("execute", Plugin.class, Runnable.class, Runnable.class,
+            long.class)));
+        cancelTask = generic(lookup.unreflect(taskType.getMethod("cancel")));
+    }
+
+    public static boolean isSupported() {
+        try {
+            Class.forName("io.papermc.paper.threadedregions.RegionizedServer");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void runGlobal(Runnable task) {
+        try {
+            Object onGlobalThread = isGlobalTickThread.invokeExact();
+            if ((Boolean) onGlobalThread) {
+                task.run();
+            } else {
+                Object ignored = globalExecute.invokeExact((Object) plugin, (Object) task);
+            }
+        } catch (Throwable t) {
+            throw failure("schedule a global task", t);
+        }
+    }
+
+    @Override
+    public Task runGlobalLater(Runnable task, long delayTicks) {
+        try {
+            return wrap(globalRunDelayed.invokeExact((Object) plugin, (Object) consumer(task), (Object) Math.max(1L, delayTicks)));
+        } catch (Throwable t) {
+            throw failure("schedule a delayed global task", t);
+        }
+    }
+
+    @Override
+    public Task runGlobalTimer(Runnable task, long delayTicks, long periodTicks) {
+        try {
+            return wrap(globalRunAtFixedRate.invokeExact((Object) plugin, (Object) consumer(task), (Object) Math.max(1L, delayTicks),
+                (Object) Math.max(1L, periodTicks)));
+        } catch (Throwable t) {
+            throw failure("schedule a repeating global task", t);
+        }
+    }
+
+    @Override
+    public void runAsync(Runnable task) {
+        try {
+            Object ignored = asyncRunNow.invokeExact((Object) plugin, (Object) consumer(task));
+        } catch (Throwable t) {
+            throw failure("schedule an async task", t);
+        }
+    }
+
+    @Override
+    public Task runAsyncTimer(Runnable task, long delayTicks, long periodTicks) {
+        try {
+            return wrap(asyncRunAtFixedRate.invokeExact((Object) plugin, (Object) consumer(task),
+                (Object) Math.max(1L, delayTicks * MILLIS_PER_TICK), (Object) Math.max(1L, periodTicks * MILLIS_PER_TICK),
+                (Object) TimeUnit.MILLISECONDS));
+        } catch (Throwable t) {
+            throw failure("schedule a repeating async task", t);
+        }
+    }
+
+    @Override
+    public void runForPlayer(Player player, Runnable task) {
+        try {
+            Object scheduler = getEntityScheduler.invokeExact((Object) player);
+            Object ignored = entityExecute.invokeExact(scheduler, (Object) plugin, (Object) task, (Object) null, (Object) 1L);
+        } catch (Throwable t) {
+            throw failure("schedule a task for " + player.getName(), t);
+        }
+    }
+
+    private Task wrap(Object scheduledTask) {
+        return () -> {
+            try {
+                Object ignored = cancelTask.invokeExact(scheduledTask);
+            } catch (Throwable t) {
+                throw failure("cancel a task", t);
+            }
+        };
+    }
+
+    private static Consumer<Object> consumer(Runnable task) {
+        return scheduledTask -> task.run();
+    }
+
+    private static MethodHandle generic(MethodHandle handle) {
+        return handle.asType(MethodType.genericMethodType(handle.type().parameterCount()));
+    }
+
+    private static IllegalStateException failure(String action, Throwable cause) {
+        return new IllegalStateException("Failed to " + action + " on Folia", cause);
+    }
+}
@@ -0,0 +1,71 @@
+package com.advancedrotating.messages.scheduler;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+// Blocking file and database work, one virtual thread per task, so a slow disk parks a cheap virtual thread instead
+// of holding up a server tick or a scheduler pool thread. Results are handed back on the main (global region) thread.
+public class IoExecutor {
+
+    @FunctionalInterface
+    public interface IoTask<T> {
+        T call() throws Exception;
+    }
+
+    private final TaskScheduler taskScheduler;
+    private final Logger logger;
+    private final ExecutorService executor;
+
+    public IoExecutor(TaskScheduler taskScheduler, Logger logger) {
+        this.taskScheduler = taskScheduler;
+        this.logger = logger;
+        this.executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("AdvancedRotatingMessages-IO-", 0).factory());
+    }
+
+    // Completes on the I/O thread; use submit() to continue on the main thread
+    public <T> CompletableFuture<T> supply(IoTask<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(task.call());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public <T> void submit(IoTask<T> task, Consumer<? super T> onResult) {
+        submit(task, onResult, error -> logger.severe("Background I/O task failed: " + error));
+    }
+
+    public <T> void submit(IoTask<T> task, Consumer<? super T> onResult, Consumer<Throwable> onFailure) {
+        supply(task).whenComplete((result, error) -> taskScheduler.runGlobal(() -> {
+            if (error == null) {
+                onResult.accept(result);
+            } else {
+                onFailure.accept(error);
+            }
+        }));
+    }
+
+    public void shutdown(long timeoutMillis) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                logger.warning("Background I/O tasks did not finish within " + timeoutMillis + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -2,198 +2,356 @@ package com.advancedrotating.messages.scheduler;
 
 import com.advancedrotating.messages.AdvancedRotatingMessagesPlugin;
 import com.advancedrotating.messages.config.ConfigManager;
-import com.advancedrotating.messages.database.DatabaseManager;
-import com.advancedrotating.messages.database.DatabaseManager.QueuedMessage;
 import com.advancedrotating.messages.models.MessageGroup;
+import com.advancedrotating.messages.render.MessageRenderCache;
+import com.advancedrotating.messages.render.MessageTemplate;
+import com.advancedrotating.messages.rotation.RotationManager;
+import com.advancedrotating.messages.storage.QueuedMessage;
+import com.advancedrotating.messages.storage.RotationStorage;
 
 import org.bukkit.Bukkit;
-import org.bukkit.ChatColor;
-import org.bukkit.scheduler.BukkitRunnable;
-import org.bukkit.scheduler.BukkitTask;
+import org.bukkit.entity.Player;
 
 import java.util.*;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
 
 public class MessageScheduler {
 
+    private static final long TICK = 50;
+
     private final AdvancedRotatingMessagesPlugin plugin;
     private final ConfigManager configManager;
-    private final DatabaseManager databaseManager;
-    private final Map<String, Long> lastSentTimes;
-    private final Queue<QueuedMessage> messageQueue;
-    private BukkitTask schedulerTask;
-    private long lastMessageSentTime;
-
-    public MessageScheduler(AdvancedRotatingMessagesPlugin plugin, ConfigManager configManager, DatabaseManager databaseManager) {
+    private final RotationStorage storage;
+    private final RotationManager rotationManager;
+    private final MessageRenderCache renderCache;
+    private final AudienceIndex audienceIndex;
+    private final DeadlineQueue deadlines;
+    private final OverflowQueue overflowQueue;
+    private final SendRateLimiter rateLimiter;
+    private TaskScheduler.Task wakeTask;
+    private long scheduledWakeTime;
+    private long frequencyUnit;
+    private boolean running;
+    // Copies of main-thread state for the JMX gauges, refreshed whenever the scheduler re-arms
+    private volatile int scheduledGroupCount;
+    private volatile int queuedMessageCount;
+
+    public MessageScheduler(AdvancedRotatingMessagesPlugin plugin, ConfigManager configManager, RotationStorage storage,
+                            RotationManager rotationManager, AudienceIndex audienceIndex) {
         this.plugin = plugin;
         this.configManager = configManager;
-        this.databaseManager = databaseManager;
-        this.lastSentTimes = new HashMap<>();
-        this.messageQueue = new LinkedList<>();
-        this.lastMessageSentTime = 0;
+        this.storage = storage;
+        this.rotationManager = rotationManager;
+        this.renderCache = new MessageRenderCache();
+        this.audienceIndex = audienceIndex;
+        this.deadlines = new DeadlineQueue();
+        this.overflowQueue = new OverflowQueue();
+        this.rateLimiter = new SendRateLimiter();
+        this.scheduledWakeTime = Long.MAX_VALUE;
+        this.frequencyUnit = 60 * 1000;
     }
 
     public void start() {
-        initializeGroups();
-
-        schedulerTask = new BukkitRunnable() {
-            @Override
-            public void run() {
-                processScheduledMessages();
-            }
-        }.runTaskTimer(plugin, 0L, 20L * 60L);
+        running = true;
+        applySettings();
+        overflowQueue.restore(storage.loadQueue());
+        prefetchQueuedMessages(null);
+        scheduleAllGroups(System.currentTimeMillis());
+        rearmAt(System.currentTimeMillis());
     }
 
     public void stop() {
-        if (schedulerTask != null) {
-            schedulerTask.cancel();
+        running = false;
+        cancelWake();
+        saveQueueIfChanged();
+    }
+
+    private void applySettings() {
+        frequencyUnit = configManager.getTimeUnitMillis();
+        rateLimiter.configure(Math.round(frequencyUnit / configManager.getSendRate()), configManager.getSendBurst());
+
+        OverflowQueue.Policy policy;
+        try {
+            policy = OverflowQueue.Policy.fromName(configManager.getQueueOverflowPolicy());
+        } catch (IllegalArgumentException e) {
+            plugin.getLogger().warning("Unknown queue overflow policy '" + configManager.getQueueOverflowPolicy() + "', falling back to skip");
+            policy = OverflowQueue.Policy.SKIP;
         }
+        overflowQueue.configure(configManager.getQueueMaxDepth(), policy, configManager.isQueueDedupeEnabled());
     }
 
-    private void initializeGroups() {
-        Map<String, MessageGroup> groups = configManager.getGroups();
-        for (MessageGroup group : groups.values()) {
-            if (group.getMessages().isEmpty()) {
-                continue;
-            }
+    private void saveQueueIfChanged() {
+        if (overflowQueue.takeChanged()) {
+            storage.saveQueue(overflowQueue.snapshot());
+        }
+    }
 
-            databaseManager.initializeGroupPool(group.getId(), group.getMessages().size());
+    private void scheduleAllGroups(long currentTime) {
+        deadlines.clear();
+        for (MessageGroup group : configManager.getGroups().values()) {
+            deadlines.schedule(group.getId(), 0L, currentTime);
+        }
+    }
 
-            List<Integer> availableMessages = databaseManager.getAvailableMessages(group.getId());
-            if (availableMessages.isEmpty()) {
-                databaseManager.resetGroupPool(group.getId());
-            }
+    public void onGroupChanged(String groupId) {
+        audienceIndex.onGroupChanged(groupId);
+
+        MessageGroup group = configManager.getGroup(groupId);
+        if (group == null) {
+            onGroupRemoved(groupId);
+            return;
         }
+
+        long currentTime = System.currentTimeMillis();
+        DeadlineQueue.Deadline existing = deadlines.get(groupId);
+        long lastSent = existing == null ? 0L : existing.getLastSent();
+        long dueTime = lastSent == 0L ? currentTime : lastSent + group.getFrequency() * frequencyUnit;
+        if (existing != null && existing.getDueTime() == dueTime) {
+            return;
+        }
+
+        deadlines.schedule(groupId, lastSent, dueTime);
+        rearm();
+    }
+
+    public void onGroupRemoved(String groupId) {
+        deadlines.remove(groupId);
+        overflowQueue.remove(groupId);
+        saveQueueIfChanged();
+        publishGauges();
+        audienceIndex.onGroupChanged(groupId);
+    }
+
+    private void onWake() {
+        wakeTask = null;
+        long wakeTime = scheduledWakeTime;
+        scheduledWakeTime = Long.MAX_VALUE;
+
+        if (System.currentTimeMillis() < wakeTime) {
+            rearmAt(wakeTime);
+            return;
+        }
+
+        long start = System.nanoTime();
+        processScheduledMessages();
+        plugin.getMetrics().record("scheduler.process", start);
     }
 
     private void processScheduledMessages() {
         // Skip processing if no players are online
         if (Bukkit.getOnlinePlayers().isEmpty()) {
             plugin.getLogger().fine("Skipping message processing - no players online");
+            rearmAt(System.currentTimeMillis() + frequencyUnit);
             return;
         }
 
         long currentTime = System.currentTimeMillis();
-        long currentMinute = currentTime / (60 * 1000);
-        long lastMinute = lastMessageSentTime / (60 * 1000);
 
-        processQueuedMessages(currentTime);
+        DeadlineQueue.Deadline head = deadlines.peek();
+        if (head != null && head.getDueTime() <= currentTime) {
+            long start = System.nanoTime();
+            queueGroupMessages(currentTime);
+            plugin.getMetrics().record("scheduler.groups", start);
+        }
 
-        if (currentMinute > lastMinute) {
-            scheduleGroupMessages(currentTime);
+        if (overflowQueue.getNextSendTime() <= currentTime && rateLimiter.getNextTokenTime(currentTime) <= currentTime) {
+            long start = System.nanoTime();
+            sendQueuedMessages(currentTime);
+            plugin.getMetrics().record("scheduler.queued", start);
         }
-    }
 
-    private void processQueuedMessages(long currentTime) {
-        List<QueuedMessage> queuedMessages = databaseManager.getQueuedMessages(currentTime);
+        saveQueueIfChanged();
+        rearm();
+    }
 
-        if (!queuedMessages.isEmpty()) {
-            QueuedMessage messageToSend = queuedMessages.get(0);
+    private void rearm() {
+        publishGauges();
+        if (!running) {
+            return;
+        }
 
-            MessageGroup group = configManager.getGroup(messageToSend.getGroupId());
-            if (group != null && messageToSend.getMessageIndex() < group.getMessages().size()) {
-                sendMessage(group, messageToSend.getMessageIndex());
-                databaseManager.markQueuedMessageAsSent(messageToSend.getId());
-                lastMessageSentTime = currentTime;
-            }
+        // Due groups are queued right away; queued messages wait for a send token
+        long wakeTime = overflowQueue.getNextSendTime();
+        if (wakeTime != Long.MAX_VALUE) {
+            wakeTime = Math.max(wakeTime, rateLimiter.getNextTokenTime(System.currentTimeMillis()));
+        }
 
-            for (int i = 1; i < queuedMessages.size(); i++) {
-                QueuedMessage queuedMsg = queuedMessages.get(i);
-                long nextAvailableTime = currentTime + (60 * 1000 * i);
-                databaseManager.addMessageToQueue(queuedMsg.getGroupId(), queuedMsg.getMessageIndex(), nextAvailableTime);
-                databaseManager.markQueuedMessageAsSent(queuedMsg.getId());
-            }
+        DeadlineQueue.Deadline head = deadlines.peek();
+        if (head != null) {
+            wakeTime = Math.min(wakeTime, head.getDueTime());
         }
-    }
 
-    private void scheduleGroupMessages(long currentTime) {
-        Map<String, MessageGroup> groups = configManager.getGroups();
-        List<MessageGroup> groupsToSend = new ArrayList<>();
+        if (wakeTime == Long.MAX_VALUE) {
+            return;
+        }
 
-        for (MessageGroup group : groups.values()) {
-            if (group.getMessages().isEmpty()) {
-                continue;
-            }
+        rearmAt(wakeTime);
+    }
 
-            long lastSent = lastSentTimes.getOrDefault(group.getId(), 0L);
-            long timeSinceLastSent = (currentTime - lastSent) / (60 * 1000);
+    // Tick delays stretch when TPS drops, so long waits are split and re-measured against the wall clock
+    private void rearmAt(long wakeTime) {
+        if (!running) {
+            return;
+        }
 
-            if (timeSinceLastSent >= group.getFrequency()) {
-                groupsToSend.add(group);
+        if (wakeTask != null) {
+            if (wakeTime >= scheduledWakeTime) {
+                return;
             }
+            wakeTask.cancel();
         }
 
-        if (groupsToSend.isEmpty()) {
-            return;
-        }
+        long remainingTicks = Math.max(1L, (wakeTime - System.currentTimeMillis() + TICK - 1) / TICK);
+        long delayTicks = remainingTicks > 40L ? remainingTicks * 3 / 4 : remainingTicks;
 
-        long currentMinute = currentTime / (60 * 1000);
-        long lastMinute = lastMessageSentTime / (60 * 1000);
+        scheduledWakeTime = wakeTime;
+        wakeTask = plugin.getTaskScheduler().runGlobalLater(this::onWake, delayTicks);
+    }
 
-        if (groupsToSend.size() == 1 && currentMinute > lastMinute) {
-            MessageGroup group = groupsToSend.get(0);
-            sendRandomMessage(group, currentTime);
-        } else if (groupsToSend.size() > 1) {
-            for (int i = 0; i < groupsToSend.size(); i++) {
-                MessageGroup group = groupsToSend.get(i);
-                long scheduledTime = currentTime + (60 * 1000 * i);
+    private void cancelWake() {
+        if (wakeTask != null) {
+            wakeTask.cancel();
+            wakeTask = null;
+        }
+        scheduledWakeTime = Long.MAX_VALUE;
+    }
 
-                List<Integer> availableMessages = databaseManager.getAvailableMessages(group.getId());
-                if (availableMessages.isEmpty()) {
-                    databaseManager.resetGroupPool(group.getId());
-                    availableMessages = databaseManager.getAvailableMessages(group.getId());
+    // Sends one slot per available token; entries for deleted groups or messages are dropped rather than retried forever
+    private void sendQueuedMessages(long currentTime) {
+        while (overflowQueue.getNextSendTime() <= currentTime && rateLimiter.getNextTokenTime(currentTime) <= currentTime) {
+            boolean sent = false;
+            for (QueuedMessage queuedMessage : overflowQueue.pollDue(currentTime)) {
+                MessageGroup group = configManager.getGroup(queuedMessage.getGroupId());
+                if (group != null && group.indexOfMessageId(queuedMessage.getMessageId()) >= 0) {
+                    sendMessage(group, queuedMessage.getMessageId());
+                    sent = true;
                 }
+            }
+            if (sent) {
+                rateLimiter.tryAcquire(currentTime);
+            }
+        }
+    }
 
-                if (!availableMessages.isEmpty()) {
-                    int randomIndex = ThreadLocalRandom.current().nextInt(availableMessages.size());
-                    int messageIndex = availableMessages.get(randomIndex);
+    // Every due group queues one message; the rate limiter decides when the queue may send
+    private void queueGroupMessages(long currentTime) {
+        List<MessageGroup> groupsToSend = new ArrayList<>();
+        List<DeadlineQueue.Deadline> dueDeadlines = new ArrayList<>();
+
+        DeadlineQueue.Deadline head = deadlines.peek();
+        while (head != null && head.getDueTime() <= currentTime) {
+            deadlines.poll();
+
+            MessageGroup group = configManager.getGroup(head.getGroupId());
+            if (group == null) {
+                deadlines.remove(head.getGroupId());
+            } else if (group.getMessages().isEmpty()) {
+                deadlines.schedule(group.getId(), head.getLastSent(), currentTime + group.getFrequency() * frequencyUnit);
+            } else {
+                groupsToSend.add(group);
+                dueDeadlines.add(head);
+            }
 
-                    if (i == 0 && currentMinute > lastMinute) {
-                        sendMessage(group, messageIndex);
-                        databaseManager.markMessageAsSent(group.getId(), messageIndex);
-                        lastMessageSentTime = currentTime;
-                    } else {
-                        databaseManager.addMessageToQueue(group.getId(), messageIndex, scheduledTime);
-                        databaseManager.markMessageAsSent(group.getId(), messageIndex);
-                    }
+            head = deadlines.peek();
+        }
 
-                    lastSentTimes.put(group.getId(), currentTime);
+        for (MessageGroup group : groupsToSend) {
+            // A group still waiting in the queue, or turned away by a full one, keeps its place in the cycle
+            if (!overflowQueue.accepts(group.getId())) {
+                plugin.getMetrics().increment("messages.skipped");
+                continue;
+            }
+
+            int messageId = rotationManager.pickMessage(group.getId());
+            if (messageId >= 0) {
+                rotationManager.markSent(group.getId(), messageId);
+                prefetch(group, messageId);
+                List<QueuedMessage> dropped = overflowQueue.add(group.getId(), messageId, currentTime);
+                // Messages are marked sent when queued, so dropped ones go back into their cycle to be picked again
+                for (QueuedMessage queued : dropped) {
+                    rotationManager.returnMessage(queued.getGroupId(), queued.getMessageId());
+                }
+                if (!dropped.isEmpty()) {
+                    plugin.getMetrics().add("messages.dropped", dropped.size());
                 }
             }
         }
-    }
 
-    private void sendRandomMessage(MessageGroup group, long currentTime) {
-        List<Integer> availableMessages = databaseManager.getAvailableMessages(group.getId());
+        // Next deadlines stay anchored to the wall-clock due time so a late wake doesn't shift the cadence
+        for (int i = 0; i < groupsToSend.size(); i++) {
+            DeadlineQueue.Deadline deadline = dueDeadlines.get(i);
+            long frequency = groupsToSend.get(i).getFrequency() * frequencyUnit;
+            long nextDue = deadline.getDueTime() + frequency;
+            if (nextDue <= currentTime) {
+                nextDue = currentTime + frequency;
+            }
+            deadlines.schedule(deadline.getGroupId(), currentTime, nextDue);
+        }
+    }
 
-        if (availableMessages.isEmpty()) {
-            databaseManager.resetGroupPool(group.getId());
-            availableMessages = databaseManager.getAvailableMessages(group.getId());
+    public void sendMessage(MessageGroup group, int messageId) {
+        int messageIndex = group.indexOfMessageId(messageId);
+        MessageTemplate template = renderCache.getTemplate(group, messageIndex);
+        if (template != null) {
+            broadcast(group, template);
+        } else if (messageIndex >= 0 && group.getBodies().getFileName() != null) {
+            // Not prefetched, e.g. sent right after an edit, so the text is read off the main thread and sent once it arrives
+            loadTemplate(group, messageIndex, loaded -> broadcast(group, loaded));
         }
+    }
 
-        if (availableMessages.isEmpty()) {
-            return;
+    // File-backed groups read a message's text on an I/O thread as soon as it is queued, so sending never waits on the disk
+    private void prefetch(MessageGroup group, int messageId) {
+        int messageIndex = group.indexOfMessageId(messageId);
+        if (messageIndex >= 0 && group.getBodies().getFileName() != null && renderCache.getTemplate(group, messageIndex) == null) {
+            loadTemplate(group, messageIndex, loaded -> { });
         }
+    }
 
-        int randomIndex = ThreadLocalRandom.current().nextInt(availableMessages.size());
-        int messageIndex = availableMessages.get(randomIndex);
+    private void prefetchQueuedMessages(String groupId) {
+        for (QueuedMessage queued : overflowQueue.snapshot()) {
+            MessageGroup group = configManager.getGroup(queued.getGroupId());
+            if (group != null && (groupId == null || groupId.equals(queued.getGroupId()))) {
+                prefetch(group, queued.getMessageId());
+            }
+        }
+    }
 
-        sendMessage(group, messageIndex);
-        databaseManager.markMessageAsSent(group.getId(), messageIndex);
-        lastSentTimes.put(group.getId(), currentTime);
-        lastMessageSentTime = currentTime;
+    private void loadTemplate(MessageGroup group, int messageIndex, Consumer<MessageTemplate> onLoaded) {
+        plugin.getIoExecutor().submit(() -> MessageRenderCache.compile(group, messageIndex), template -> {
+            // Only cached while the group is unchanged; an edit may have replaced the text meanwhile
+            if (configManager.getGroup(group.getId()) == group) {
+                renderCache.put(group, messageIndex, template);
+            }
+            onLoaded.accept(template);
+        });
     }
 
-    public void sendMessage(MessageGroup group, int messageIndex) {
-        if (messageIndex < 0 || messageIndex >= group.getMessages().size()) {
+    private void broadcast(MessageGroup group, MessageTemplate template) {
+        long start = System.nanoTime();
+        plugin.getMetrics().increment("messages.sent");
+
+        TaskScheduler tasks = plugin.getTaskScheduler();
+        Collection<? extends Player> recipients = audienceIndex.getRecipients(group);
+        int onlinePlayers = Bukkit.getOnlinePlayers().size();
+        int maxPlayers = Bukkit.getMaxPlayers();
+
+        // On Folia each player's copy is rendered and sent on that player's region thread
+        if (!template.isPlayerSpecific()) {
+            String text = template.render(null, onlinePlayers, maxPlayers);
+            for (Player player : recipients) {
+                tasks.runForPlayer(player, () -> player.sendMessage(text));
+            }
+            Bukkit.getConsoleSender().sendMessage(text);
+            plugin.getMetrics().record("scheduler.broadcast", start);
             return;
         }
 
-        String message = group.getMessages().get(messageIndex);
-        String formattedMessage = ChatColor.translateAlternateColorCodes('&',
-            group.getPrefix() + message + group.getSuffix());
-
-        Bukkit.broadcastMessage(formattedMessage);
+        for (Player player : recipients) {
+            tasks.runForPlayer(player, () -> player.sendMessage(template.render(player, onlinePlayers, maxPlayers)));
+        }
+        Bukkit.getConsoleSender().sendMessage(template.render(null, onlinePlayers, maxPlayers));
+        plugin.getMetrics().record("scheduler.broadcast", start);
     }
 
     public void forceSendMessage(String groupId, int messageIndex) {
@@ -202,17 +360,40 @@ public class MessageScheduler {
             return;
         }
 
-        sendMessage(group, messageIndex);
+        int messageId = group.getMessageId(messageIndex);
+        sendMessage(group, messageId);
+        rotationManager.markSent(groupId, messageId);
+    }
 
-        List<Integer> availableMessages = databaseManager.getAvailableMessages(groupId);
-        if (availableMessages.contains(messageIndex)) {
-            databaseManager.markMessageAsSent(groupId, messageIndex);
-        }
+    private void publishGauges() {
+        scheduledGroupCount = deadlines.size();
+        queuedMessageCount = overflowQueue.getMessageCount();
+    }
+
+    // Safe to read from any thread, including JMX
+    public int getScheduledGroupCount() {
+        return scheduledGroupCount;
+    }
+
+    public int getQueuedMessageCount() {
+        return queuedMessageCount;
+    }
+
+    // Drops the group's compiled messages after an edit and reloads the text of its queued ones
+    public void invalidateRenderedMessages(String groupId) {
+        renderCache.invalidate(groupId);
+        prefetchQueuedMessages(groupId);
     }
 
     public void reloadScheduler() {
-        lastSentTimes.clear();
-        messageQueue.clear();
-        initializeGroups();
+        renderCache.clear();
+        prefetchQueuedMessages(null);
+        audienceIndex.rebuild();
+        plugin.getGroupManager().initializeAllGroups();
+
+        cancelWake();
+        applySettings();
+        scheduleAllGroups(System.currentTimeMillis());
+        rearm();
     }
-}
\ No newline at end of file
+}
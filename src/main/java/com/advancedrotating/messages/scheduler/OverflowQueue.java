@@ -0,0 +1,182 @@
+package com.advancedrotating.messages.scheduler;
+
+import com.advancedrotating.messages.storage.QueuedMessage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Messages waiting for the send rate limit, oldest first. A slot normally holds one message; with the merge policy a
+// full queue adds new messages to its last slot instead, and they are sent together
+public class OverflowQueue {
+
+    public enum Policy {
+        DROP_OLDEST,
+        MERGE,
+        SKIP;
+
+        public static Policy fromName(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    private final ArrayDeque<Slot> slots = new ArrayDeque<>();
+    private final Map<String, Integer> queuedGroups = new HashMap<>();
+    private int maxDepth = 10;
+    private Policy policy = Policy.SKIP;
+    private boolean dedupeGroups = true;
+    private int messageCount;
+    private boolean changed;
+
+    public void configure(int maxDepth, Policy policy, boolean dedupeGroups) {
+        this.maxDepth = Math.max(1, maxDepth);
+        this.policy = policy;
+        this.dedupeGroups = dedupeGroups;
+    }
+
+    // Whether a group that just fell due should have a message picked for it at all
+    public boolean accepts(String groupId) {
+        if (dedupeGroups && queuedGroups.containsKey(groupId)) {
+            return false;
+        }
+        return slots.size() < maxDepth || policy != Policy.SKIP;
+    }
+
+    // Returns the messages that were dropped to make room, including this one if the queue is full and skipping
+    public List<QueuedMessage> add(String groupId, int messageId, long currentTime) {
+        List<QueuedMessage> dropped = new ArrayList<>();
+        if (slots.size() >= maxDepth) {
+            if (policy == Policy.SKIP) {
+                dropped.add(new QueuedMessage(0, groupId, messageId, currentTime));
+                return dropped;
+            }
+            if (policy == Policy.MERGE) {
+                Slot last = slots.peekLast();
+                last.messages.add(new QueuedMessage(0, groupId, messageId, last.time));
+                track(groupId, 1);
+                messageCount++;
+                changed = true;
+                return dropped;
+            }
+            while (slots.size() >= maxDepth) {
+                dropped.addAll(removeHead().messages);
+            }
+        }
+
+        Slot last = slots.peekLast();
+        // Slot times only order the queue and tell merged entries apart when it is restored
+        long time = last == null ? currentTime : Math.max(currentTime, last.time + 1);
+        Slot slot = new Slot(time);
+        slot.messages.add(new QueuedMessage(0, groupId, messageId, time));
+        slots.add(slot);
+        track(groupId, 1);
+        messageCount++;
+        changed = true;
+        return dropped;
+    }
+
+    public long getNextSendTime() {
+        Slot head = slots.peek();
+        return head == null ? Long.MAX_VALUE : head.time;
+    }
+
+    // Removes the head slot if it is due
+    public List<QueuedMessage> pollDue(long currentTime) {
+        Slot head = slots.peek();
+        if (head == null || head.time > currentTime) {
+            return Collections.emptyList();
+        }
+        return removeHead().messages;
+    }
+
+    public void remove(String groupId) {
+        if (!queuedGroups.containsKey(groupId)) {
+            return;
+        }
+
+        slots.removeIf(slot -> {
+            int before = slot.messages.size();
+            slot.messages.removeIf(queued -> queued.getGroupId().equals(groupId));
+            messageCount -= before - slot.messages.size();
+            return slot.messages.isEmpty();
+        });
+        queuedGroups.remove(groupId);
+        changed = true;
+    }
+
+    public void clear() {
+        slots.clear();
+        queuedGroups.clear();
+        messageCount = 0;
+        changed = true;
+    }
+
+    // Saved entries sharing a scheduled time were merged into one slot
+    public void restore(List<QueuedMessage> saved) {
+        slots.clear();
+        queuedGroups.clear();
+        messageCount = 0;
+
+        for (QueuedMessage queued : saved) {
+            Slot last = slots.peekLast();
+            if (last == null || last.time != queued.getScheduledTime()) {
+                last = new Slot(queued.getScheduledTime());
+                slots.add(last);
+            }
+            last.messages.add(queued);
+            track(queued.getGroupId(), 1);
+            messageCount++;
+        }
+        changed = false;
+    }
+
+    public List<QueuedMessage> snapshot() {
+        List<QueuedMessage> entries = new ArrayList<>(messageCount);
+        for (Slot slot : slots) {
+            entries.addAll(slot.messages);
+        }
+        return entries;
+    }
+
+    // True once after each change, so the caller saves at most one snapshot per pass
+    public boolean takeChanged() {
+        boolean wasChanged = changed;
+        changed = false;
+        return wasChanged;
+    }
+
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    public int getDepth() {
+        return slots.size();
+    }
+
+    private Slot removeHead() {
+        Slot head = slots.poll();
+        for (QueuedMessage queued : head.messages) {
+            track(queued.getGroupId(), -1);
+        }
+        messageCount -= head.messages.size();
+        changed = true;
+        return head;
+    }
+
+    private void track(String groupId, int delta) {
+        queuedGroups.merge(groupId, delta, (count, change) -> count + change == 0 ? null : count + change);
+    }
+
+    private static final class Slot {
+        private final long time;
+        private final List<QueuedMessage> messages = new ArrayList<>(1);
+
+        private Slot(long time) {
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.advancedrotating.messages.scheduler;
+
+// Token bucket for the server-wide send rate. Credit is kept in milliseconds, so a token costs exactly one send
+// interval and refills without rounding drift; the bucket holds up to burst tokens and starts full
+public class SendRateLimiter {
+
+    private long interval = 60 * 1000;
+    private long capacity = interval;
+    private long credit = capacity;
+    private long lastRefill;
+
+    public void configure(long intervalMillis, int burst) {
+        interval = Math.max(1L, intervalMillis);
+        capacity = interval * Math.max(1, burst);
+        credit = Math.min(credit, capacity);
+    }
+
+    public boolean tryAcquire(long currentTime) {
+        refill(currentTime);
+        if (credit < interval) {
+            return false;
+        }
+        credit -= interval;
+        return true;
+    }
+
+    public long getNextTokenTime(long currentTime) {
+        refill(currentTime);
+        return credit >= interval ? currentTime : currentTime + interval - credit;
+    }
+
+    private void refill(long currentTime) {
+        if (currentTime > lastRefill) {
+            credit = Math.min(capacity, credit + (currentTime - lastRefill));
+        }
+        lastRefill = currentTime;
+    }
+}
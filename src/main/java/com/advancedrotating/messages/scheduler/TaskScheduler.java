@@ -0,0 +1,26 @@
+package com.advancedrotating.messages.scheduler;
+
+import org.bukkit.entity.Player;
+
+// Where plugin work runs. Folia has no main thread: shared plugin state lives on the global region thread, and anything
+// that touches a player runs on the region thread that owns that player
+public interface TaskScheduler {
+
+    // Runs immediately when already on the main (global region) thread
+    void runGlobal(Runnable task);
+
+    Task runGlobalLater(Runnable task, long delayTicks);
+
+    Task runGlobalTimer(Runnable task, long delayTicks, long periodTicks);
+
+    void runAsync(Runnable task);
+
+    Task runAsyncTimer(Runnable task, long delayTicks, long periodTicks);
+
+    // Dropped if the player logs out before it runs
+    void runForPlayer(Player player, Runnable task);
+
+    interface Task {
+        void cancel();
+    }
+}
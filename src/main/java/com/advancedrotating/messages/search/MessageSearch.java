@@ -0,0 +1,168 @@
+package com.advancedrotating.messages.search;
+
+import com.advancedrotating.messages.AdvancedRotatingMessagesPlugin;
+import com.advancedrotating.messages.config.ConfigManager;
+import com.advancedrotating.messages.models.MessageGroup;
+
+import org.bukkit.ChatColor;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// Owns the search index: full builds run off-thread from a registry snapshot, edits are applied as they happen
+public class MessageSearch {
+
+    public static final int MIN_QUERY_LENGTH = 3;
+
+    private final AdvancedRotatingMessagesPlugin plugin;
+    private final ConfigManager configManager;
+    // Swapped on the main thread, read by searches running on I/O threads
+    private volatile MessageSearchIndex index = new MessageSearchIndex();
+    // Edits made while a build is running, replayed onto the new index before it replaces the old one
+    private List<Runnable> pendingEdits;
+
+    public MessageSearch(AdvancedRotatingMessagesPlugin plugin, ConfigManager configManager) {
+        this.plugin = plugin;
+        this.configManager = configManager;
+    }
+
+    public void rebuild() {
+        if (pendingEdits != null) {
+            return;
+        }
+
+        pendingEdits = new ArrayList<>();
+        Map<String, MessageGroup> snapshot = configManager.getGroups();
+        plugin.getIoExecutor().submit(() -> {
+            MessageSearchIndex built = new MessageSearchIndex();
+            for (MessageGroup group : snapshot.values()) {
+                for (int i = 0; i < group.getMessageCount(); i++) {
+                    built.put(group.getId(), group.getMessageId(i), normalize(group.getMessages().get(i)));
+                }
+            }
+            return built;
+        }, built -> {
+            index = built;
+            for (Runnable edit : pendingEdits) {
+                edit.run();
+            }
+            pendingEdits = null;
+            plugin.getLogger().fine("Search index rebuilt with " + built.getLiveCount() + " messages");
+        });
+    }
+
+    public void onMessageChanged(String groupId, int messageId, String message) {
+        String normalized = normalize(message);
+        applyEdit(() -> index.put(groupId, messageId, normalized));
+    }
+
+    public void onMessageRemoved(String groupId, int messageId) {
+        applyEdit(() -> index.remove(groupId, messageId));
+    }
+
+    public void onGroupRemoved(String groupId) {
+        applyEdit(() -> index.removeGroup(groupId));
+    }
+
+    private void applyEdit(Runnable edit) {
+        edit.run();
+        if (pendingEdits != null) {
+            pendingEdits.add(edit);
+        } else if (index.getDeadCount() > index.getLiveCount() + 1024) {
+            rebuild();
+        }
+    }
+
+    // Runs on an I/O thread and hands one page back on the main thread. Matches are sorted by group and position.
+    // A three-character query is a single trigram, so every candidate matches; longer ones are checked against the
+    // start of the text kept in the index, and only messages longer than that are read in full. Message text is
+    // only fetched for the requested page.
+    public void search(String query, int page, int pageSize, Consumer<Page> onResult) {
+        String normalized = normalize(query);
+        MessageSearchIndex searched = index;
+        Map<String, MessageGroup> groups = configManager.getGroups();
+
+        plugin.getIoExecutor().submit(() -> {
+            List<Match> matches = new ArrayList<>();
+            for (MessageSearchIndex.Candidate candidate : searched.findCandidates(normalized)) {
+                MessageGroup group = groups.get(candidate.getGroupId());
+                if (group == null) {
+                    continue;
+                }
+                int position = group.indexOfMessageId(candidate.getMessageId());
+                if (position < 0) {
+                    continue;
+                }
+                if (normalized.length() > 3) {
+                    Boolean matched = candidate.matches(normalized);
+                    if (matched == null) {
+                        matched = normalize(group.getMessages().get(position)).contains(normalized);
+                    }
+                    if (!matched) {
+                        continue;
+                    }
+                }
+                matches.add(new Match(group, position));
+            }
+
+            matches.sort(Comparator.comparing((Match match) -> match.group.getId()).thenComparingInt(match -> match.position));
+            int totalPages = (int) Math.ceil((double) matches.size() / pageSize);
+            List<Result> results = new ArrayList<>();
+            for (int i = (page - 1) * pageSize; i < Math.min(page * pageSize, matches.size()); i++) {
+                Match match = matches.get(i);
+                results.add(new Result(match.group.getId(), match.position, match.group.getMessages().get(match.position)));
+            }
+            return new Page(results, matches.size(), totalPages);
+        }, onResult);
+    }
+
+    private static String normalize(String text) {
+        return ChatColor.stripColor(ChatColor.translateAlternateColorCodes('&', text)).toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Match {
+        private final MessageGroup group;
+        private final int position;
+
+        private Match(MessageGroup group, int position) {
+            this.group = group;
+            this.position = position;
+        }
+    }
+
+    public static class Page {
+        private final List<Result> results;
+        private final int totalMatches;
+        private final int totalPages;
+
+        private Page(List<Result> results, int totalMatches, int totalPages) {
+            this.results = results;
+            this.totalMatches = totalMatches;
+            this.totalPages = totalPages;
+        }
+
+        public List<Result> getResults() { return results; }
+        public int getTotalMatches() { return totalMatches; }
+        public int getTotalPages() { return totalPages; }
+    }
+
+    public static class Result {
+        private final String groupId;
+        private final int index;
+        private final String message;
+
+        private Result(String groupId, int index, String message) {
+            this.groupId = groupId;
+            this.index = index;
+            this.message = message;
+        }
+
+        public String getGroupId() { return groupId; }
+        public int getIndex() { return index; }
+        public String getMessage() { return message; }
+    }
+}
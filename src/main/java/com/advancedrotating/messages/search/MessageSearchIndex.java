@@ -0,0 +1,174 @@
+package com.advancedrotating.messages.search;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Trigram index over normalized message text, keyed by group and stable message ID.
+// Document numbers only grow, so posting lists stay sorted; edited and deleted messages leave dead documents
+// behind that are skipped until the next rebuild. The start of each normalized text is kept so most candidates can
+// be confirmed without reading the message itself, which for file-backed groups means a disk read.
+public class MessageSearchIndex {
+
+    private static final int STORED_TEXT_LENGTH = 256;
+
+    private final Map<Long, IntList> postings = new HashMap<>();
+    private final Map<String, Integer> documentsByKey = new HashMap<>();
+    private final BitSet live = new BitSet();
+    private String[] documentGroups = new String[64];
+    private int[] documentMessageIds = new int[64];
+    private String[] documentTexts = new String[64];
+    private int documentCount;
+    private int liveCount;
+
+    public synchronized void put(String groupId, int messageId, String normalizedText) {
+        remove(groupId, messageId);
+
+        int document = documentCount++;
+        if (document == documentGroups.length) {
+            documentGroups = Arrays.copyOf(documentGroups, document * 2);
+            documentMessageIds = Arrays.copyOf(documentMessageIds, document * 2);
+            documentTexts = Arrays.copyOf(documentTexts, document * 2);
+        }
+        documentGroups[document] = groupId;
+        documentMessageIds[document] = messageId;
+        documentTexts[document] = normalizedText.length() > STORED_TEXT_LENGTH ? normalizedText.substring(0, STORED_TEXT_LENGTH) : normalizedText;
+        documentsByKey.put(key(groupId, messageId), document);
+        live.set(document);
+        liveCount++;
+
+        Set<Long> seen = new HashSet<>();
+        for (int i = 0; i + 3 <= normalizedText.length(); i++) {
+            long trigram = trigram(normalizedText, i);
+            if (seen.add(trigram)) {
+                postings.computeIfAbsent(trigram, t -> new IntList()).add(document);
+            }
+        }
+    }
+
+    public synchronized void remove(String groupId, int messageId) {
+        Integer document = documentsByKey.remove(key(groupId, messageId));
+        if (document != null) {
+            live.clear(document);
+            documentTexts[document] = null;
+            liveCount--;
+        }
+    }
+
+    public synchronized void removeGroup(String groupId) {
+        for (int document = live.nextSetBit(0); document >= 0; document = live.nextSetBit(document + 1)) {
+            if (documentGroups[document].equals(groupId)) {
+                remove(groupId, documentMessageIds[document]);
+            }
+        }
+    }
+
+    // Candidates contain every trigram of the query, which must be at least three characters long;
+    // callers still confirm the substring against the message text
+    public synchronized List<Candidate> findCandidates(String normalizedQuery) {
+        List<IntList> lists = new ArrayList<>();
+        for (int i = 0; i + 3 <= normalizedQuery.length(); i++) {
+            IntList list = postings.get(trigram(normalizedQuery, i));
+            if (list == null) {
+                return new ArrayList<>();
+            }
+            lists.add(list);
+        }
+        if (lists.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        lists.sort((a, b) -> Integer.compare(a.size, b.size));
+        IntList smallest = lists.get(0);
+        int[] cursors = new int[lists.size()];
+        List<Candidate> candidates = new ArrayList<>();
+
+        outer:
+        for (int i = 0; i < smallest.size; i++) {
+            int document = smallest.values[i];
+            if (!live.get(document)) {
+                continue;
+            }
+            for (int l = 1; l < lists.size(); l++) {
+                IntList list = lists.get(l);
+                cursors[l] = list.seek(document, cursors[l]);
+                if (cursors[l] >= list.size || list.values[cursors[l]] != document) {
+                    continue outer;
+                }
+            }
+            candidates.add(new Candidate(documentGroups[document], documentMessageIds[document], documentTexts[document]));
+        }
+        return candidates;
+    }
+
+    public synchronized int getLiveCount() {
+        return liveCount;
+    }
+
+    public synchronized int getDeadCount() {
+        return documentCount - liveCount;
+    }
+
+    private static String key(String groupId, int messageId) {
+        return groupId + '\u0000' + messageId;
+    }
+
+    private static long trigram(String text, int start) {
+        return ((long) text.charAt(start) << 32) | ((long) text.charAt(start + 1) << 16) | text.charAt(start + 2);
+    }
+
+    private static final class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        private void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        // Index of the first value >= target at or after from, galloping so long lists are skipped quickly
+        private int seek(int target, int from) {
+            int low = from;
+            int step = 1;
+            int high = from;
+            while (high < size && values[high] < target) {
+                low = high + 1;
+                high += step;
+                step <<= 1;
+            }
+            high = Math.min(high + 1, size);
+            int found = Arrays.binarySearch(values, low, high, target);
+            return found >= 0 ? found : -found - 1;
+        }
+    }
+
+    public static class Candidate {
+        private final String groupId;
+        private final int messageId;
+        private final String storedText;
+
+        private Candidate(String groupId, int messageId, String storedText) {
+            this.groupId = groupId;
+            this.messageId = messageId;
+            this.storedText = storedText;
+        }
+
+        public String getGroupId() { return groupId; }
+        public int getMessageId() { return messageId; }
+
+        // TRUE or FALSE when the stored text settles it; null when the match could only be past the stored part
+        public Boolean matches(String normalizedQuery) {
+            if (storedText.contains(normalizedQuery)) {
+                return Boolean.TRUE;
+            }
+            return storedText.length() < STORED_TEXT_LENGTH ? Boolean.FALSE : null;
+        }
+    }
+}
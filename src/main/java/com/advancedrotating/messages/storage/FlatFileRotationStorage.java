@@ -0,0 +1,134 @@
+package com.advancedrotating.messages.storage;
+
+import com.advancedrotating.messages.rotation.RotationCycle;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+// Holds all state in memory and rewrites a small tab-separated file whenever it changed, at most once per interval
+public class FlatFileRotationStorage extends InMemoryRotationStorage {
+
+    private static final long WRITE_INTERVAL = 5000;
+    private static final long SHUTDOWN_TIMEOUT = 5000;
+
+    private final Logger logger;
+    private final File stateFile;
+    private final Map<String, RotationCycle> cycles = new HashMap<>();
+    private ScheduledExecutorService writer;
+    private boolean dirty;
+
+    public FlatFileRotationStorage(Logger logger, File stateFile) {
+        this.logger = logger;
+        this.stateFile = stateFile;
+    }
+
+    @Override
+    public void initialize() {
+        readState();
+
+        writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "AdvancedRotatingMessages-StateWriter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.scheduleWithFixedDelay(this::writeIfDirty, WRITE_INTERVAL, WRITE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (writer != null) {
+            writer.shutdown();
+            try {
+                writer.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        writeIfDirty();
+    }
+
+    @Override
+    public synchronized Map<String, RotationCycle> loadRotationCycles() {
+        return new HashMap<>(cycles);
+    }
+
+    @Override
+    public synchronized void saveRotationCycle(String groupId, RotationCycle cycle) {
+        cycles.put(groupId, cycle);
+        dirty = true;
+    }
+
+    @Override
+    public synchronized void deleteRotationCycle(String groupId) {
+        if (cycles.remove(groupId) != null) {
+            dirty = true;
+        }
+    }
+
+    @Override
+    protected synchronized void queueChanged() {
+        dirty = true;
+    }
+
+    private void readState() {
+        if (!stateFile.exists()) {
+            return;
+        }
+
+        try {
+            for (String line : Files.readAllLines(stateFile.toPath(), StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t", -1);
+                if (fields[0].equals("cycle") && fields.length > 2) {
+                    cycles.put(fields[1], RotationCycle.parse(line.substring(line.indexOf('\t', 6) + 1)));
+                } else if (fields[0].equals("queue") && fields.length == 5) {
+                    restoreQueuedMessage(new QueuedMessage(Integer.parseInt(fields[1]), fields[2],
+                        Integer.parseInt(fields[3]), Long.parseLong(fields[4])));
+                } else if (!line.isEmpty()) {
+                    throw new IllegalArgumentException("unknown record " + fields[0]);
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            logger.severe("Failed to read rotation state from " + stateFile.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private void writeIfDirty() {
+        String contents;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            contents = serializeState();
+        }
+
+        try {
+            AtomicFiles.write(stateFile.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            logger.severe("Failed to write rotation state to " + stateFile.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private String serializeState() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, RotationCycle> entry : cycles.entrySet()) {
+            builder.append("cycle\t").append(entry.getKey()).append('\t').append(entry.getValue().serialize()).append('\n');
+        }
+        for (QueuedMessage queuedMessage : getPendingQueue()) {
+            builder.append("queue\t").append(queuedMessage.getId()).append('\t').append(queuedMessage.getGroupId())
+                .append('\t').append(queuedMessage.getMessageId()).append('\t').append(queuedMessage.getScheduledTime()).append('\n');
+        }
+        return builder.toString();
+    }
+}
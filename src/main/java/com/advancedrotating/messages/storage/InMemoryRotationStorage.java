@@ -0,0 +1,70 @@
+package com.advancedrotating.messages.storage;
+
+import com.advancedrotating.messages.rotation.RotationCycle;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Keeps no cycle state of its own and never touches disk; every restart begins a fresh rotation cycle
+public class InMemoryRotationStorage implements RotationStorage {
+
+    private final Map<Integer, QueuedMessage> queue = new LinkedHashMap<>();
+    private int nextQueueId = 1;
+
+    @Override
+    public void initialize() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public Map<String, RotationCycle> loadRotationCycles() {
+        return new HashMap<>();
+    }
+
+    @Override
+    public void saveRotationCycle(String groupId, RotationCycle cycle) {
+    }
+
+    @Override
+    public void deleteRotationCycle(String groupId) {
+    }
+
+    @Override
+    public synchronized List<QueuedMessage> loadQueue() {
+        List<QueuedMessage> loaded = new ArrayList<>(queue.values());
+        loaded.sort(Comparator.comparingLong(QueuedMessage::getScheduledTime));
+        return loaded;
+    }
+
+    @Override
+    public synchronized void saveQueue(List<QueuedMessage> snapshot) {
+        queue.clear();
+        nextQueueId = 1;
+        for (QueuedMessage queuedMessage : snapshot) {
+            int queueId = nextQueueId++;
+            queue.put(queueId, new QueuedMessage(queueId, queuedMessage.getGroupId(), queuedMessage.getMessageId(),
+                queuedMessage.getScheduledTime()));
+        }
+        queueChanged();
+    }
+
+    protected synchronized Collection<QueuedMessage> getPendingQueue() {
+        return new ArrayList<>(queue.values());
+    }
+
+    protected synchronized void restoreQueuedMessage(QueuedMessage queuedMessage) {
+        queue.put(queuedMessage.getId(), queuedMessage);
+        nextQueueId = Math.max(nextQueueId, queuedMessage.getId() + 1);
+    }
+
+    protected void queueChanged() {
+    }
+}
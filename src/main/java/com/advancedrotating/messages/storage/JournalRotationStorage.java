@@ -0,0 +1,496 @@
+package com.advancedrotating.messages.storage;
+
+import com.advancedrotating.messages.rotation.RotationCycle;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+// Appends fixed-size records to a memory-mapped log and folds them into a snapshot once the log fills up.
+// The log and snapshot share a generation number, so a log left over from before a compaction is never replayed twice.
+// Callers never wait on the log: appends, compactions and group dictionary syncs all run in order on the journal thread.
+public class JournalRotationStorage implements RotationStorage {
+
+    private static final int MAGIC = 0x41524D4A;
+    private static final int VERSION = 1;
+    private static final int RECORD_SIZE = 32;
+    private static final int CHECKSUMMED_BYTES = 28;
+    private static final int LOG_RECORDS = 65536;
+    private static final long FORCE_INTERVAL = 1000;
+    private static final long SHUTDOWN_TIMEOUT = 5000;
+
+    private static final int CYCLE = 8;
+    private static final int CYCLE_ENTRY = 9;
+    private static final int CYCLE_DELETE = 10;
+    private static final int QUEUE = 11;
+    private static final int QUEUE_ENTRY = 12;
+
+    private static final int ENTRY_LATE = 1;
+    private static final int ENTRY_SENT = 2;
+    private static final int ENTRY_WEIGHT = 3;
+    private static final int ENTRY_WEIGHT_HASH = 4;
+
+    private final Logger logger;
+    private final Path logFile;
+    private final Path snapshotFile;
+    private final Path groupsFile;
+    private final Map<String, RotationCycle> cycles = new HashMap<>();
+    private final Map<Integer, QueuedMessage> queue = new LinkedHashMap<>();
+    private final List<String> groupNames = new ArrayList<>();
+    private final Map<String, Integer> groupIndexes = new HashMap<>();
+    private final CRC32 crc = new CRC32();
+    private FileChannel logChannel;
+    private MappedByteBuffer log;
+    private ScheduledExecutorService background;
+    private long generation;
+    private int writePosition;
+    private int nextQueueId = 1;
+    private boolean unforced;
+
+    public JournalRotationStorage(Logger logger, File dataFolder) {
+        this.logger = logger;
+        this.logFile = new File(dataFolder, "rotation-journal.log").toPath();
+        this.snapshotFile = new File(dataFolder, "rotation-journal.snapshot").toPath();
+        this.groupsFile = new File(dataFolder, "rotation-journal.groups").toPath();
+    }
+
+    @Override
+    public synchronized void initialize() {
+        try {
+            readGroups();
+            readSnapshot();
+
+            logChannel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            log = logChannel.map(FileChannel.MapMode.READ_WRITE, 0, (long) RECORD_SIZE * (LOG_RECORDS + 1));
+
+            if (readHeaderGeneration() == generation) {
+                replayLog();
+            } else {
+                resetLog();
+            }
+        } catch (IOException e) {
+            log = null;
+            logger.severe("Failed to open rotation journal, state will not be persisted: " + e.getMessage());
+        }
+
+        background = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "AdvancedRotatingMessages-Journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        background.scheduleWithFixedDelay(this::forceIfNeeded, FORCE_INTERVAL, FORCE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (background != null) {
+            background.shutdown();
+            try {
+                background.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (this) {
+            if (log == null) {
+                return;
+            }
+            // Leave a compacted snapshot behind so the next startup has nothing to replay
+            if (writePosition > RECORD_SIZE) {
+                compact();
+            }
+            log.force();
+            try {
+                logChannel.close();
+            } catch (IOException e) {
+                logger.severe("Failed to close rotation journal: " + e.getMessage());
+            }
+            log = null;
+        }
+    }
+
+    @Override
+    public synchronized Map<String, RotationCycle> loadRotationCycles() {
+        return new HashMap<>(cycles);
+    }
+
+    @Override
+    public void saveRotationCycle(String groupId, RotationCycle cycle) {
+        write(() -> logCycle(groupId, cycle));
+    }
+
+    // A cycle is one header record followed by one record per late addition, out-of-order send and changed weight
+    private void logCycle(String groupId, RotationCycle cycle) {
+        int entries = cycle.getLateAdditions().length + cycle.getSentOutOfOrder().length + cycle.getWeights().size()
+            + (cycle.getWeightHash() != 0 ? 1 : 0);
+        int group = groupIndex(groupId);
+
+        if (log != null && entries + 1 > LOG_RECORDS / 2) {
+            // Too large to log; fold it straight into a snapshot instead
+            applyCycle(groupId, cycle);
+            compact();
+            return;
+        }
+
+        // The header and its entries must land in the same log generation
+        if (log != null && writePosition + RECORD_SIZE * (entries + 1) > log.capacity()) {
+            compact();
+        }
+
+        append(CYCLE, group, cycle.getCursor(), cycle.getBound(), cycle.getSeed(), entries);
+        for (int messageId : cycle.getLateAdditions()) {
+            append(CYCLE_ENTRY, group, messageId, ENTRY_LATE, 0, 0);
+        }
+        for (int messageId : cycle.getSentOutOfOrder()) {
+            append(CYCLE_ENTRY, group, messageId, ENTRY_SENT, 0, 0);
+        }
+        for (Map.Entry<Integer, Integer> weight : cycle.getWeights().entrySet()) {
+            append(CYCLE_ENTRY, group, weight.getKey(), ENTRY_WEIGHT, weight.getValue(), 0);
+        }
+        if (cycle.getWeightHash() != 0) {
+            append(CYCLE_ENTRY, group, 0, ENTRY_WEIGHT_HASH, cycle.getWeightHash(), 0);
+        }
+        applyCycle(groupId, cycle);
+    }
+
+    @Override
+    public void deleteRotationCycle(String groupId) {
+        write(() -> {
+            append(CYCLE_DELETE, groupIndex(groupId), 0, 0, 0, 0);
+            cycles.remove(groupId);
+        });
+    }
+
+    @Override
+    public synchronized List<QueuedMessage> loadQueue() {
+        List<QueuedMessage> loaded = new ArrayList<>(queue.values());
+        loaded.sort(Comparator.comparingLong(QueuedMessage::getScheduledTime));
+        return loaded;
+    }
+
+    @Override
+    public void saveQueue(List<QueuedMessage> queue) {
+        List<QueuedMessage> snapshot = new ArrayList<>(queue);
+        write(() -> logQueue(snapshot));
+    }
+
+    // Like a cycle, a queue snapshot is a header record followed by one record per queued message
+    private void logQueue(List<QueuedMessage> snapshot) {
+        if (log != null && snapshot.size() + 1 > LOG_RECORDS / 2) {
+            applyQueue(snapshot);
+            compact();
+            return;
+        }
+
+        if (log != null && writePosition + RECORD_SIZE * (snapshot.size() + 1) > log.capacity()) {
+            compact();
+        }
+
+        append(QUEUE, -1, 0, 0, 0, snapshot.size());
+        for (QueuedMessage queuedMessage : snapshot) {
+            append(QUEUE_ENTRY, groupIndex(queuedMessage.getGroupId()), queuedMessage.getMessageId(), 0,
+                queuedMessage.getScheduledTime(), 0);
+        }
+        applyQueue(snapshot);
+    }
+
+    // Once closed, the final snapshot has already been written and later changes are dropped
+    private void write(Runnable change) {
+        try {
+            background.execute(() -> {
+                synchronized (this) {
+                    change.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warning("Rotation journal is closed, dropping a state change");
+        }
+    }
+
+    private void applyCycle(String groupId, RotationCycle cycle) {
+        cycles.put(groupId, cycle);
+    }
+
+    private void applyQueue(List<QueuedMessage> snapshot) {
+        queue.clear();
+        nextQueueId = 1;
+        for (QueuedMessage queuedMessage : snapshot) {
+            restoreQueuedMessage(new QueuedMessage(nextQueueId, queuedMessage.getGroupId(), queuedMessage.getMessageId(),
+                queuedMessage.getScheduledTime()));
+        }
+    }
+
+    private void restoreQueuedMessage(QueuedMessage queuedMessage) {
+        queue.put(queuedMessage.getId(), queuedMessage);
+        nextQueueId = Math.max(nextQueueId, queuedMessage.getId() + 1);
+    }
+
+    private void append(int type, int group, int a, int b, long value, int extra) {
+        if (log == null) {
+            return;
+        }
+
+        if (writePosition + RECORD_SIZE > log.capacity()) {
+            compact();
+        }
+
+        log.putInt(writePosition, type);
+        log.putInt(writePosition + 4, group);
+        log.putInt(writePosition + 8, a);
+        log.putInt(writePosition + 12, b);
+        log.putLong(writePosition + 16, value);
+        log.putInt(writePosition + 24, extra);
+        log.putInt(writePosition + CHECKSUMMED_BYTES, checksum(writePosition));
+        writePosition += RECORD_SIZE;
+        unforced = true;
+    }
+
+    private void replayLog() {
+        int position = RECORD_SIZE;
+        while (position + RECORD_SIZE <= log.capacity()) {
+            int type = log.getInt(position);
+            if (type == 0) {
+                break;
+            }
+            if (log.getInt(position + CHECKSUMMED_BYTES) != checksum(position)) {
+                // A torn write from a crash mid-append; everything before it is intact
+                logger.warning("Rotation journal ends in an incomplete record, ignoring it");
+                break;
+            }
+
+            int group = log.getInt(position + 4);
+            String groupId = group >= 0 && group < groupNames.size() ? groupNames.get(group) : null;
+            if (type == CYCLE || type == QUEUE) {
+                int next = type == CYCLE ? replayCycle(position, groupId) : replayQueue(position);
+                if (next < 0) {
+                    logger.warning("Rotation journal ends in an incomplete or unreadable snapshot record, ignoring it");
+                    break;
+                }
+                position = next;
+                continue;
+            }
+            if (type != CYCLE_DELETE) {
+                logger.severe("Rotation journal has a record of unknown type " + type + " at byte " + position + ", ignoring the rest of the log");
+                break;
+            }
+            if (groupId != null) {
+                cycles.remove(groupId);
+            }
+            position += RECORD_SIZE;
+        }
+
+        writePosition = position;
+        for (int i = position; i < Math.min(position + RECORD_SIZE, log.capacity()); i++) {
+            log.put(i, (byte) 0);
+        }
+    }
+
+    // Returns the position after the cycle's entries, or -1 if they were cut short by a crash
+    private int replayCycle(int position, String groupId) {
+        int entries = log.getInt(position + 24);
+        List<Integer> lateAdditions = new ArrayList<>();
+        List<Integer> sentOutOfOrder = new ArrayList<>();
+        Map<Integer, Integer> weights = new LinkedHashMap<>();
+        long weightHash = 0;
+
+        int entry = position + RECORD_SIZE;
+        for (int i = 0; i < entries; i++, entry += RECORD_SIZE) {
+            if (entry + RECORD_SIZE > log.capacity() || log.getInt(entry) != CYCLE_ENTRY
+                    || log.getInt(entry + CHECKSUMMED_BYTES) != checksum(entry)) {
+                return -1;
+            }
+
+            int messageId = log.getInt(entry + 8);
+            switch (log.getInt(entry + 12)) {
+                case ENTRY_LATE:
+                    lateAdditions.add(messageId);
+                    break;
+                case ENTRY_SENT:
+                    sentOutOfOrder.add(messageId);
+                    break;
+                case ENTRY_WEIGHT:
+                    weights.put(messageId, (int) log.getLong(entry + 16));
+                    break;
+                case ENTRY_WEIGHT_HASH:
+                    weightHash = log.getLong(entry + 16);
+                    break;
+                default:
+                    return -1;
+            }
+        }
+
+        if (groupId != null) {
+            applyCycle(groupId, new RotationCycle(log.getLong(position + 16), log.getInt(position + 12), log.getInt(position + 8),
+                weightHash, toArray(lateAdditions), toArray(sentOutOfOrder), weights));
+        }
+        return entry;
+    }
+
+    private int replayQueue(int position) {
+        int entries = log.getInt(position + 24);
+        List<QueuedMessage> snapshot = new ArrayList<>(entries);
+
+        int entry = position + RECORD_SIZE;
+        for (int i = 0; i < entries; i++, entry += RECORD_SIZE) {
+            if (entry + RECORD_SIZE > log.capacity() || log.getInt(entry) != QUEUE_ENTRY
+                    || log.getInt(entry + CHECKSUMMED_BYTES) != checksum(entry)) {
+                return -1;
+            }
+
+            int group = log.getInt(entry + 4);
+            if (group >= 0 && group < groupNames.size()) {
+                snapshot.add(new QueuedMessage(0, groupNames.get(group), log.getInt(entry + 8), log.getLong(entry + 16)));
+            }
+        }
+
+        applyQueue(snapshot);
+        return entry;
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] result = new int[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+
+    private void compact() {
+        if (log == null) {
+            return;
+        }
+
+        try {
+            writeSnapshot(generation + 1);
+            generation++;
+            resetLog();
+        } catch (IOException e) {
+            logger.severe("Failed to compact rotation journal: " + e.getMessage());
+        }
+    }
+
+    private void resetLog() {
+        byte[] zeros = new byte[RECORD_SIZE * 256];
+        for (int position = 0; position < log.capacity(); position += zeros.length) {
+            log.put(position, zeros, 0, Math.min(zeros.length, log.capacity() - position));
+        }
+
+        log.putInt(0, MAGIC);
+        log.putInt(4, VERSION);
+        log.putLong(8, generation);
+        log.putInt(CHECKSUMMED_BYTES, checksum(0));
+        log.force();
+        writePosition = RECORD_SIZE;
+        unforced = false;
+    }
+
+    private long readHeaderGeneration() {
+        if (log.getInt(0) != MAGIC || log.getInt(4) != VERSION || log.getInt(CHECKSUMMED_BYTES) != checksum(0)) {
+            return -1;
+        }
+        return log.getLong(8);
+    }
+
+    private int checksum(int position) {
+        crc.reset();
+        crc.update(log.slice(position, CHECKSUMMED_BYTES));
+        return (int) crc.getValue();
+    }
+
+    private void forceIfNeeded() {
+        MappedByteBuffer toForce;
+        synchronized (this) {
+            if (!unforced || log == null) {
+                return;
+            }
+            unforced = false;
+            toForce = log;
+        }
+        toForce.force();
+    }
+
+    private int groupIndex(String groupId) {
+        Integer index = groupIndexes.get(groupId);
+        if (index != null) {
+            return index;
+        }
+
+        index = groupNames.size();
+        groupNames.add(groupId);
+        groupIndexes.put(groupId, index);
+        try {
+            // New group names are rare, so the dictionary is appended and synced before the record that uses it
+            Files.writeString(groupsFile, groupId + "\n", StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND, StandardOpenOption.DSYNC);
+        } catch (IOException e) {
+            logger.severe("Failed to record group " + groupId + " in the rotation journal: " + e.getMessage());
+        }
+        return index;
+    }
+
+    private void readGroups() throws IOException {
+        if (!Files.exists(groupsFile)) {
+            return;
+        }
+        for (String line : Files.readAllLines(groupsFile, StandardCharsets.UTF_8)) {
+            groupIndexes.putIfAbsent(line, groupNames.size());
+            groupNames.add(line);
+        }
+    }
+
+    private void readSnapshot() throws IOException {
+        if (!Files.exists(snapshotFile)) {
+            return;
+        }
+
+        try {
+            for (String line : Files.readAllLines(snapshotFile, StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t", -1);
+                if (fields[0].equals("generation") && fields.length == 2) {
+                    generation = Long.parseLong(fields[1]);
+                } else if (fields[0].equals("cycle") && fields.length > 2) {
+                    cycles.put(fields[1], RotationCycle.parse(line.substring(line.indexOf('\t', 6) + 1)));
+                } else if (fields[0].equals("queue") && fields.length == 5) {
+                    restoreQueuedMessage(new QueuedMessage(Integer.parseInt(fields[1]), fields[2],
+                        Integer.parseInt(fields[3]), Long.parseLong(fields[4])));
+                } else if (!line.isEmpty()) {
+                    throw new IllegalArgumentException("unknown record " + fields[0]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt snapshot " + snapshotFile.getFileName(), e);
+        }
+    }
+
+    private void writeSnapshot(long snapshotGeneration) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        builder.append("generation\t").append(snapshotGeneration).append('\n');
+        for (Map.Entry<String, RotationCycle> entry : cycles.entrySet()) {
+            builder.append("cycle\t").append(entry.getKey()).append('\t').append(entry.getValue().serialize()).append('\n');
+        }
+        for (QueuedMessage queuedMessage : queue.values()) {
+            builder.append("queue\t").append(queuedMessage.getId()).append('\t').append(queuedMessage.getGroupId())
+                .append('\t').append(queuedMessage.getMessageId()).append('\t').append(queuedMessage.getScheduledTime()).append('\n');
+        }
+
+        AtomicFiles.write(snapshotFile, builder.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,20 @@
+package com.advancedrotating.messages.storage;
+
+public class MaintenanceReport {
+    private final long runTime;
+    private final long reclaimedBytes;
+    private final long databaseSize;
+    private final long duration;
+
+    public MaintenanceReport(long runTime, long reclaimedBytes, long databaseSize, long duration) {
+        this.runTime = runTime;
+        this.reclaimedBytes = reclaimedBytes;
+        this.databaseSize = databaseSize;
+        this.duration = duration;
+    }
+
+    public long getRunTime() { return runTime; }
+    public long getReclaimedBytes() { return reclaimedBytes; }
+    public long getDatabaseSize() { return databaseSize; }
+    public long getDuration() { return duration; }
+}
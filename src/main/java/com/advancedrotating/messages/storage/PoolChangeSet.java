@@ -0,0 +1,57 @@
+package com.advancedrotating.messages.storage;
+
+import com.advancedrotating.messages.rotation.RotationCycle;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+// Differences between configured groups and persisted cycles, applied together at startup and reload
+public class PoolChangeSet {
+
+    private final Map<String, RotationCycle> changedCycles = new LinkedHashMap<>();
+    private final Set<String> removedGroups = new LinkedHashSet<>();
+    private final Set<String> restartedCycles = new LinkedHashSet<>();
+    private int size;
+
+    // A message that joined or left a stored cycle; only counted, since the cycle itself carries the change
+    public void countChange() {
+        size++;
+    }
+
+    public void saveCycle(String groupId, RotationCycle cycle) {
+        changedCycles.put(groupId, cycle);
+    }
+
+    public void restartCycle(String groupId) {
+        restartedCycles.add(groupId);
+    }
+
+    public void removeGroup(String groupId) {
+        if (removedGroups.add(groupId)) {
+            size++;
+        }
+    }
+
+    public Map<String, RotationCycle> getChangedCycles() {
+        return Collections.unmodifiableMap(changedCycles);
+    }
+
+    public Set<String> getRemovedGroups() {
+        return Collections.unmodifiableSet(removedGroups);
+    }
+
+    public Set<String> getRestartedCycles() {
+        return Collections.unmodifiableSet(restartedCycles);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0 && changedCycles.isEmpty();
+    }
+}
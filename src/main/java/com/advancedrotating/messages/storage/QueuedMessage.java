@@ -0,0 +1,20 @@
+package com.advancedrotating.messages.storage;
+
+public class QueuedMessage {
+    private final int id;
+    private final String groupId;
+    private final int messageId;
+    private final long scheduledTime;
+
+    public QueuedMessage(int id, String groupId, int messageId, long scheduledTime) {
+        this.id = id;
+        this.groupId = groupId;
+        this.messageId = messageId;
+        this.scheduledTime = scheduledTime;
+    }
+
+    public int getId() { return id; }
+    public String getGroupId() { return groupId; }
+    public int getMessageId() { return messageId; }
+    public long getScheduledTime() { return scheduledTime; }
+}
@@ -0,0 +1,50 @@
+package com.advancedrotating.messages.storage;
+
+import com.advancedrotating.messages.rotation.RotationCycle;
+
+import java.util.List;
+import java.util.Map;
+
+// Durable backing for rotation cycles and the overflow queue; the live pool state is kept by RotationManager
+public interface RotationStorage {
+
+    void initialize();
+
+    void close();
+
+    Map<String, RotationCycle> loadRotationCycles();
+
+    void saveRotationCycle(String groupId, RotationCycle cycle);
+
+    void deleteRotationCycle(String groupId);
+
+    default void applyPoolChanges(PoolChangeSet changes) {
+        changes.getRemovedGroups().forEach(this::deleteRotationCycle);
+        changes.getChangedCycles().forEach(this::saveRotationCycle);
+    }
+
+    // The scheduler keeps the queue in memory; each save replaces the whole previous snapshot
+    List<QueuedMessage> loadQueue();
+
+    void saveQueue(List<QueuedMessage> queue);
+
+    default int getPendingWriteCount() {
+        return 0;
+    }
+
+    default MaintenanceReport runMaintenance(int pagesPerStep) {
+        return null;
+    }
+
+    default MaintenanceReport getLastMaintenanceReport() {
+        return null;
+    }
+
+    default boolean isMaintenanceRunning() {
+        return false;
+    }
+
+    default boolean supportsMaintenance() {
+        return false;
+    }
+}